@@ -0,0 +1,354 @@
+package com.notronix.newrelic.events;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides the batch size and the number of concurrent requests used to insert events, based on the latency, payload size and status code observed for each
+ * insert request.  The decisions follow an additive increase, multiplicative decrease (AIMD) scheme: while requests succeed within the target latency, the
+ * batch size and concurrency grow by a small step per round trip; when the share of throttled or failed requests among the last 100 requests exceeds the
+ * target rate, the concurrency is cut multiplicatively, followed by the batch size once the concurrency is at its minimum.  At most one decrease is made per
+ * round trip, so a burst of throttled responses to requests that were already in flight is treated as a single signal.  A request rejected because its
+ * payload was too large (413) cuts the batch size below the size of that request straight away.
+ * <p>
+ * The current decisions and the smoothed observations they are based on are exposed through getters, and may be read from any thread.
+ *
+ * @version 1.0
+ * @see com.notronix.newrelic.events.NewRelicBatchSender
+ */
+public class NewRelicAdaptiveController
+{
+    private static final double SMOOTHING = 0.1;
+    private static final int THROTTLE_WINDOW = 100;
+
+    private int minBatchSize = 1;
+    private int maxBatchSize = 2000;
+    private int batchSizeIncrement = 10;
+    private int maxConcurrency = 16;
+    private int maxPayloadBytes = 1000000;
+    private double decreaseFactor = 0.5;
+    private double targetThrottleRate = 0.01;
+    private long targetLatencyMillis = 2000;
+
+    private final boolean[] recentCongestion = new boolean[THROTTLE_WINDOW];
+
+    private double batchSize = 100;
+    private double concurrency = 1;
+    private double throttleRate;
+    private double latencyMillis;
+    private double bytesPerEvent;
+    private double eventsPerSecond;
+    private long lastDecrease = System.nanoTime() - TimeUnit.HOURS.toNanos(1);
+    private long windowStart = System.nanoTime();
+    private long windowEvents;
+    private long requests;
+    private long throttled;
+    private int recentThrottled;
+    private long increases;
+    private long decreases;
+
+    /**
+     * Records the outcome of an insert request and adjusts the batch size and concurrency accordingly.
+     *
+     * @param events       the number of events in the request.
+     * @param bytes        the size of the request payload in bytes.
+     * @param latencyNanos the time taken by the request in nanoseconds.
+     * @param status       the status code of the response, or a negative number if no response was received.
+     */
+    public synchronized void record(int events, long bytes, long latencyNanos, int status)
+    {
+        long now = System.nanoTime();
+        boolean congested = (status == 429 || status >= 500 || status < 0);
+
+        double latency = latencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+
+        int slot = (int) (requests % THROTTLE_WINDOW);
+
+        if (recentCongestion[slot])
+        {
+            recentThrottled--;
+        }
+
+        recentCongestion[slot] = congested;
+
+        if (congested)
+        {
+            recentThrottled++;
+        }
+
+        requests++;
+        throttleRate = recentThrottled / (double) Math.min(requests, THROTTLE_WINDOW);
+        latencyMillis = (requests == 1) ? latency : smooth(latencyMillis, latency);
+
+        if (events > 0)
+        {
+            bytesPerEvent = (bytesPerEvent == 0) ? bytes / (double) events : smooth(bytesPerEvent, bytes / (double) events);
+        }
+
+        if (congested)
+        {
+            throttled++;
+
+            if (throttleRate > targetThrottleRate)
+            {
+                decrease(now, true);
+            }
+        }
+        else if (status == 413)
+        {
+            batchSize = Math.max(minBatchSize, Math.min(batchSize, events) * decreaseFactor);
+            decreases++;
+        }
+        else if (status >= 200 && status < 300)
+        {
+            windowEvents += events;
+
+            if (TimeUnit.NANOSECONDS.toMillis(latencyNanos) > targetLatencyMillis)
+            {
+                decrease(now, false);
+            }
+            else
+            {
+                batchSize = Math.min(maxBatchSize, batchSize + batchSizeIncrement / concurrency);
+                concurrency = Math.min(maxConcurrency, concurrency + 1 / concurrency);
+                increases++;
+            }
+        }
+
+        long elapsed = now - windowStart;
+
+        if (elapsed >= TimeUnit.SECONDS.toNanos(1))
+        {
+            double rate = windowEvents / (elapsed / (double) TimeUnit.SECONDS.toNanos(1));
+            eventsPerSecond = (eventsPerSecond == 0) ? rate : smooth(eventsPerSecond, rate);
+            windowStart = now;
+            windowEvents = 0;
+        }
+    }
+
+    /**
+     * Gets the number of events that should be sent in the next insert request.  This is the adaptive batch size, capped so that the expected payload stays
+     * under the maximum payload size.
+     *
+     * @return the batch size.
+     */
+    public synchronized int getBatchSize()
+    {
+        int size = (int) batchSize;
+
+        if (bytesPerEvent > 0)
+        {
+            size = Math.min(size, (int) (maxPayloadBytes / bytesPerEvent));
+        }
+
+        return Math.max(minBatchSize, size);
+    }
+
+    /**
+     * Gets the number of insert requests that may be in flight at the same time.
+     *
+     * @return the concurrency.
+     */
+    public synchronized int getConcurrency()
+    {
+        return Math.max(1, (int) concurrency);
+    }
+
+    /**
+     * Gets the fraction of the last 100 insert requests that were throttled or failed.
+     *
+     * @return the throttle rate, between 0 and 1.
+     */
+    public synchronized double getThrottleRate()
+    {
+        return throttleRate;
+    }
+
+    /**
+     * Gets the smoothed latency of insert requests.
+     *
+     * @return the latency in milliseconds.
+     */
+    public synchronized double getLatencyMillis()
+    {
+        return latencyMillis;
+    }
+
+    /**
+     * Gets the smoothed payload size per event.
+     *
+     * @return the number of bytes per event.
+     */
+    public synchronized double getBytesPerEvent()
+    {
+        return bytesPerEvent;
+    }
+
+    /**
+     * Gets the smoothed rate at which events were accepted by the Insights API.
+     *
+     * @return the number of accepted events per second.
+     */
+    public synchronized double getEventsPerSecond()
+    {
+        return eventsPerSecond;
+    }
+
+    /**
+     * Gets the number of insert requests recorded.
+     *
+     * @return the number of requests.
+     */
+    public synchronized long getRequestCount()
+    {
+        return requests;
+    }
+
+    /**
+     * Gets the number of insert requests recorded that were throttled or failed.
+     *
+     * @return the number of throttled requests.
+     */
+    public synchronized long getThrottledCount()
+    {
+        return throttled;
+    }
+
+    /**
+     * Gets the number of times that the batch size and concurrency were increased.
+     *
+     * @return the number of increases.
+     */
+    public synchronized long getIncreaseCount()
+    {
+        return increases;
+    }
+
+    /**
+     * Gets the number of times that the batch size or concurrency was decreased.
+     *
+     * @return the number of decreases.
+     */
+    public synchronized long getDecreaseCount()
+    {
+        return decreases;
+    }
+
+    /**
+     * Gets the largest payload that a batch may have.
+     *
+     * @return the maximum payload size in bytes.
+     */
+    public synchronized int getMaxPayloadBytes()
+    {
+        return maxPayloadBytes;
+    }
+
+    /**
+     * Sets the smallest batch size that the controller will decide on.  Defaults to 1.
+     *
+     * @param minBatchSize the minimum batch size.
+     */
+    public synchronized void setMinBatchSize(int minBatchSize)
+    {
+        this.minBatchSize = minBatchSize;
+        this.batchSize = Math.max(batchSize, minBatchSize);
+    }
+
+    /**
+     * Sets the largest batch size that the controller will decide on.  Defaults to 2000.
+     *
+     * @param maxBatchSize the maximum batch size.
+     */
+    public synchronized void setMaxBatchSize(int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+        this.batchSize = Math.min(batchSize, maxBatchSize);
+    }
+
+    /**
+     * Sets the number of events that the batch size grows by per round trip.  Defaults to 10.
+     *
+     * @param batchSizeIncrement the batch size increment.
+     */
+    public synchronized void setBatchSizeIncrement(int batchSizeIncrement)
+    {
+        this.batchSizeIncrement = batchSizeIncrement;
+    }
+
+    /**
+     * Sets the largest number of concurrent insert requests that the controller will decide on.  Defaults to 16.
+     *
+     * @param maxConcurrency the maximum concurrency.
+     */
+    public synchronized void setMaxConcurrency(int maxConcurrency)
+    {
+        this.maxConcurrency = maxConcurrency;
+        this.concurrency = Math.min(concurrency, maxConcurrency);
+    }
+
+    /**
+     * Sets the largest payload that a batch may have.  The batch size is capped by the expected payload, and a batch is cut short when its events would
+     * exceed it.  Defaults to 1MB, which is the limit of the Insights API.
+     *
+     * @param maxPayloadBytes the maximum payload size in bytes.
+     */
+    public synchronized void setMaxPayloadBytes(int maxPayloadBytes)
+    {
+        this.maxPayloadBytes = maxPayloadBytes;
+    }
+
+    /**
+     * Sets the factor that the concurrency or batch size is multiplied by when it is decreased.  Defaults to 0.5.
+     *
+     * @param decreaseFactor the decrease factor, between 0 and 1.
+     */
+    public synchronized void setDecreaseFactor(double decreaseFactor)
+    {
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    /**
+     * Sets the fraction of throttled or failed requests among the last 100 requests that the controller tolerates before decreasing.  Defaults to 0.01.
+     *
+     * @param targetThrottleRate the target throttle rate, between 0 and 1.
+     */
+    public synchronized void setTargetThrottleRate(double targetThrottleRate)
+    {
+        this.targetThrottleRate = targetThrottleRate;
+    }
+
+    /**
+     * Sets the request latency above which the controller decreases the batch size.  Defaults to 2 seconds.
+     *
+     * @param targetLatencyMillis the target latency in milliseconds.
+     */
+    public synchronized void setTargetLatencyMillis(long targetLatencyMillis)
+    {
+        this.targetLatencyMillis = targetLatencyMillis;
+    }
+
+    private void decrease(long now, boolean congested)
+    {
+        if (now - lastDecrease < TimeUnit.MILLISECONDS.toNanos((long) latencyMillis))
+        {
+            return;
+        }
+
+        if (congested && concurrency > 1)
+        {
+            concurrency = Math.max(1, concurrency * decreaseFactor);
+        }
+        else
+        {
+            batchSize = Math.max(minBatchSize, batchSize * decreaseFactor);
+        }
+
+        lastDecrease = now;
+        decreases++;
+    }
+
+    private static double smooth(double average, double value)
+    {
+        return average + SMOOTHING * (value - average);
+    }
+}
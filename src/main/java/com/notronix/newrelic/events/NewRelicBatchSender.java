@@ -0,0 +1,458 @@
+package com.notronix.newrelic.events;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Queues custom New Relic events and submits them in the background in batches via the New Relic Insights API.  The size of each batch and the number of
+ * batches in flight at the same time are decided by a {@link NewRelicAdaptiveController}, which is informed of the outcome of every request.  Batches that
+ * are throttled or fail are retried after about one round trip until the sender is closed.  A batch waiting to be retried gives up its place in flight,
+ * and is submitted again ahead of newer events once the controller allows another request.  No batch is taken with a payload over the controller's maximum,
+ * and a batch that is still rejected as too large is split in two and both halves are submitted again; only a single event that is too large is dropped.
+ * <p>
+ * Events are serialized as soon as they are queued, and only their json is kept, in a preallocated direct buffer whose capacity is given in bytes.  The
+ * queued event objects can therefore be collected right away, and the body of each request is streamed straight from the buffer.
+ *
+ * @version 1.0
+ * @see com.notronix.newrelic.events.NewRelicClient
+ * @see com.notronix.newrelic.events.NewRelicAdaptiveController
+ */
+public class NewRelicBatchSender implements Closeable
+{
+    private final NewRelicClient client;
+    private final NewRelicAdaptiveController controller;
+    private final NewRelicEventRing ring;
+    private final ExecutorService workers;
+    private final Thread dispatcher;
+    private final Object inFlightLock = new Object();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Deque<NewRelicEventRing.Batch> retries = new ArrayDeque<>();
+
+    private int inFlight;
+    private int retrying;
+    private volatile boolean closed;
+
+    /**
+     * Creates a sender with a new adaptive controller and 8MB of room for queued events.
+     *
+     * @param client the client used to submit the events.
+     * @throws IllegalStateException if the client has not been initialized with an <code>accountId</code> and <code>insertKey</code>.
+     */
+    public NewRelicBatchSender(NewRelicClient client) throws IllegalStateException
+    {
+        this(client, new NewRelicAdaptiveController(), 8 * 1024 * 1024);
+    }
+
+    /**
+     * Creates a sender and starts its background threads.
+     *
+     * @param client        the client used to submit the events.
+     * @param controller    the controller that decides the batch size and concurrency.
+     * @param capacityBytes the number of bytes of serialized events that can be queued.
+     * @throws IllegalStateException if the client has not been initialized with an <code>accountId</code> and <code>insertKey</code>.
+     */
+    public NewRelicBatchSender(NewRelicClient client, NewRelicAdaptiveController controller, int capacityBytes) throws IllegalStateException
+    {
+        if (client.getAccountId() <= 0 || isBlank(client.getInsertKey()))
+        {
+            throw new IllegalStateException("Uninitialized Client.  Please initialize with a valid NewRelic accountId and a valid insert key.");
+        }
+
+        this.client = client;
+        this.controller = controller;
+        this.ring = new NewRelicEventRing(capacityBytes);
+        this.workers = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "NewRelicBatchSender-worker");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+        this.dispatcher = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dispatch();
+            }
+        }, "NewRelicBatchSender");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Serializes an event, together with the client's common attributes, and queues it to be submitted.
+     *
+     * @param event the event to be submitted.
+     * @return true if the event was queued, or false if there is not enough room in the queue or the sender is closed.
+     * @throws NullPointerException  if the event is null
+     * @throws APIViolationException if the event type of the event violates the insights API specifications, or if the event and common attributes together
+     *                               exceed the attribute limit.
+     */
+    public boolean send(NewRelicEvent event) throws NullPointerException, APIViolationException
+    {
+        if (event == null)
+        {
+            throw new NullPointerException("event is null.");
+        }
+
+        if (closed || !ring.offer(NewRelicClient.toJson(event, client.getCommonAttributes())))
+        {
+            dropped.incrementAndGet();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the controller that decides the batch size and concurrency of this sender.
+     *
+     * @return the adaptive controller.
+     */
+    public NewRelicAdaptiveController getController()
+    {
+        return controller;
+    }
+
+    /**
+     * Gets the number of events waiting to be submitted.
+     *
+     * @return the number of queued events.
+     */
+    public int getQueuedCount()
+    {
+        return ring.getUnreadCount();
+    }
+
+    /**
+     * Gets the number of bytes of the queue in use by events that are waiting to be submitted or are in flight.
+     *
+     * @return the number of queued bytes.
+     */
+    public int getQueuedBytes()
+    {
+        return ring.getUsedBytes();
+    }
+
+    /**
+     * Gets the number of events accepted by the Insights API.
+     *
+     * @return the number of sent events.
+     */
+    public long getSentCount()
+    {
+        return sent.get();
+    }
+
+    /**
+     * Gets the number of events that could not be queued, were rejected by the Insights API, or were left unsent when the sender was closed.
+     *
+     * @return the number of dropped events.
+     */
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Stops accepting events, submits the events that are still queued and waits for all requests in flight to complete.  Batches that fail during close are
+     * not retried.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+
+        try
+        {
+            dispatcher.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            workers.shutdown();
+        }
+    }
+
+    private void dispatch()
+    {
+        try
+        {
+            while (true)
+            {
+                NewRelicEventRing.Batch next;
+                boolean pending;
+
+                synchronized (inFlightLock)
+                {
+                    next = retries.pollFirst();
+                    pending = inFlight > 0 || retrying > 0;
+
+                    if (next == null && closed && !pending && ring.isEmpty())
+                    {
+                        break;
+                    }
+                }
+
+                if (next == null)
+                {
+                    next = ring.take(controller.getBatchSize(), controller.getMaxPayloadBytes(), pending ? 10 : 100, TimeUnit.MILLISECONDS);
+
+                    if (next == null)
+                    {
+                        continue;
+                    }
+                }
+
+                final NewRelicEventRing.Batch batch = next;
+
+                synchronized (inFlightLock)
+                {
+                    while (inFlight >= controller.getConcurrency())
+                    {
+                        inFlightLock.wait();
+                    }
+
+                    inFlight++;
+                }
+
+                workers.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Outcome outcome = Outcome.DONE;
+
+                        try
+                        {
+                            outcome = submit(batch);
+                        }
+                        finally
+                        {
+                            synchronized (inFlightLock)
+                            {
+                                if (outcome == Outcome.RETRY)
+                                {
+                                    retrying++;
+                                }
+                                else if (outcome == Outcome.SPLIT)
+                                {
+                                    NewRelicEventRing.Batch[] halves = ring.split(batch);
+                                    retries.addFirst(halves[1]);
+                                    retries.addFirst(halves[0]);
+                                }
+                                else
+                                {
+                                    ring.release(batch);
+                                }
+
+                                inFlight--;
+                                inFlightLock.notifyAll();
+                            }
+                        }
+
+                        if (outcome == Outcome.RETRY)
+                        {
+                            requeue(batch);
+                        }
+                    }
+                });
+            }
+        }
+        catch (InterruptedException e)
+        {
+            dropped.addAndGet(ring.getUnreadCount());
+        }
+    }
+
+    /**
+     * Submits the batch once.
+     *
+     * @return whether the batch is done with, should be retried, or was too large and should be split.
+     */
+    private Outcome submit(NewRelicEventRing.Batch batch)
+    {
+        BatchEntity entity = new BatchEntity(batch.getJson());
+        int status;
+        long start = System.nanoTime();
+
+        try
+        {
+            status = client.insert(entity).getStatusCode();
+        }
+        catch (NewRelicInsertException e)
+        {
+            status = -1;
+        }
+
+        controller.record(batch.getEvents(), entity.getContentLength(), System.nanoTime() - start, status);
+
+        if (status >= 200 && status < 300)
+        {
+            sent.addAndGet(batch.getEvents());
+            return Outcome.DONE;
+        }
+
+        if (status == 413 && batch.getEvents() > 1)
+        {
+            return Outcome.SPLIT;
+        }
+
+        if ((status != 429 && status < 500 && status >= 0) || closed)
+        {
+            dropped.addAndGet(batch.getEvents());
+            return Outcome.DONE;
+        }
+
+        return Outcome.RETRY;
+    }
+
+    /**
+     * Waits about one round trip without holding an in-flight slot, then puts the batch in front of the events still in the ring, so that the retry waits
+     * for a free slot like any other batch.  A batch whose wait ends after the sender was closed is dropped.
+     */
+    private void requeue(NewRelicEventRing.Batch batch)
+    {
+        boolean interrupted = false;
+
+        try
+        {
+            TimeUnit.MILLISECONDS.sleep(Math.max(10, (long) controller.getLatencyMillis()));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            interrupted = true;
+        }
+
+        synchronized (inFlightLock)
+        {
+            if (closed || interrupted)
+            {
+                dropped.addAndGet(batch.getEvents());
+                ring.release(batch);
+            }
+            else
+            {
+                retries.addLast(batch);
+            }
+
+            retrying--;
+            inFlightLock.notifyAll();
+        }
+    }
+
+    private enum Outcome
+    {
+        DONE, RETRY, SPLIT
+    }
+
+    /**
+     * The json array of a batch of events, written straight from the direct buffer of the ring.  The events in the buffer are each followed by a comma, so
+     * the last comma is replaced by the closing bracket of the array.
+     */
+    private static class BatchEntity extends AbstractHttpEntity
+    {
+        private static final int CHUNK_SIZE = 8192;
+
+        private final ByteBuffer json;
+
+        BatchEntity(ByteBuffer json)
+        {
+            this.json = json;
+        }
+
+        @Override
+        public boolean isRepeatable()
+        {
+            return true;
+        }
+
+        @Override
+        public long getContentLength()
+        {
+            return json.remaining() + 1;
+        }
+
+        @Override
+        public InputStream getContent()
+        {
+            final ByteBuffer source = json.duplicate();
+
+            return new InputStream()
+            {
+                private boolean opened;
+
+                @Override
+                public int read()
+                {
+                    if (!opened)
+                    {
+                        opened = true;
+                        return '[';
+                    }
+
+                    if (!source.hasRemaining())
+                    {
+                        return -1;
+                    }
+
+                    byte next = source.get();
+
+                    return (source.hasRemaining() ? next : ']') & 0xFF;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException
+        {
+            ByteBuffer source = json.duplicate();
+            source.limit(source.limit() - 1);
+
+            byte[] chunk = new byte[Math.min(CHUNK_SIZE, Math.max(1, source.remaining()))];
+            out.write('[');
+
+            while (source.hasRemaining())
+            {
+                int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+
+            out.write(']');
+            out.flush();
+        }
+
+        @Override
+        public boolean isStreaming()
+        {
+            return false;
+        }
+    }
+}
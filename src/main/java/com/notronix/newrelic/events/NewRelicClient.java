@@ -1,7 +1,13 @@
 package com.notronix.newrelic.events;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.StatusLine;
 import org.apache.http.client.config.CookieSpecs;
@@ -14,9 +20,15 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,12 +43,23 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
  * @version 1.0
  * @see com.notronix.newrelic.events.NewRelicEvent
  * @see com.notronix.newrelic.events.NewRelicQuery
+ * @see com.notronix.newrelic.events.NewRelicExport
  */
 public class NewRelicClient
 {
+    /**
+     * The maximum number of events that the Insights API returns for a single query.
+     */
+    static final int MAX_QUERY_LIMIT = 1000;
+
+    private static final Gson GSON = new Gson();
+
     private int accountId;
     private String insertKey;
     private String queryKey;
+    private NewRelicCommonAttributes commonAttributes;
+    private String insertUrl = "https://insights-collector.newrelic.com";
+    private String queryUrl = "https://insights-api.newrelic.com";
 
     /**
      * Gets the account ID that the client will send events to.
@@ -98,6 +121,67 @@ public class NewRelicClient
         this.queryKey = queryKey;
     }
 
+    /**
+     * Gets the base URL of the Insights API that this client will insert custom events into.
+     *
+     * @return the base URL of the insert API.
+     */
+    public String getInsertUrl()
+    {
+        return insertUrl;
+    }
+
+    /**
+     * Sets the base URL of the Insights API that this client shall insert custom events into.  Defaults to
+     * <code>https://insights-collector.newrelic.com</code>.
+     *
+     * @param insertUrl the base URL of the insert API, without a trailing slash.
+     */
+    public void setInsertUrl(String insertUrl)
+    {
+        this.insertUrl = insertUrl;
+    }
+
+    /**
+     * Gets the base URL of the Insights API that this client will query custom events from.
+     *
+     * @return the base URL of the query API.
+     */
+    public String getQueryUrl()
+    {
+        return queryUrl;
+    }
+
+    /**
+     * Sets the base URL of the Insights API that this client shall query custom events from.  Defaults to <code>https://insights-api.newrelic.com</code>.
+     *
+     * @param queryUrl the base URL of the query API, without a trailing slash.
+     */
+    public void setQueryUrl(String queryUrl)
+    {
+        this.queryUrl = queryUrl;
+    }
+
+    /**
+     * Gets the common attributes that this client adds to every submitted event.
+     *
+     * @return the common attributes, or null if there are none.
+     */
+    public NewRelicCommonAttributes getCommonAttributes()
+    {
+        return commonAttributes;
+    }
+
+    /**
+     * Sets the common attributes that this client shall add to every submitted event.  Attributes of an event override common attributes with the same name.
+     *
+     * @param commonAttributes the common attributes, may be null.
+     */
+    public void setCommonAttributes(NewRelicCommonAttributes commonAttributes)
+    {
+        this.commonAttributes = commonAttributes;
+    }
+
     /**
      * Submits a custom new relic event via the New Relic Insights API.  Before this method is called, the client should be initialized with a valid New Relic
      * account ID and insert key.
@@ -110,6 +194,25 @@ public class NewRelicClient
      * @throws NullPointerException    if the event is null
      */
     public StatusLine submit(NewRelicEvent event) throws IllegalStateException, NewRelicInsertException, APIViolationException, NullPointerException
+    {
+        return submit(event, commonAttributes);
+    }
+
+    /**
+     * Submits a custom new relic event via the New Relic Insights API, together with the provided common attributes instead of the client's common
+     * attributes.  Before this method is called, the client should be initialized with a valid New Relic account ID and insert key.
+     *
+     * @param event            The New Relic custom event to be submitted.
+     * @param commonAttributes the common attributes to be added to the event, may be null.
+     * @return the response status returned by the New Relic Insights API.
+     * @throws IllegalStateException   if this method is called before an <code>accountId</code> and <code>insertKey</code> are set.
+     * @throws NewRelicInsertException if there is any unexpected exception while attempting to submit an event.
+     * @throws APIViolationException   if the event type of the event violates the insights API specifications, or if the event and common attributes
+     *                                 together exceed the attribute limit.
+     * @throws NullPointerException    if the event is null
+     */
+    public StatusLine submit(NewRelicEvent event, NewRelicCommonAttributes commonAttributes)
+            throws IllegalStateException, NewRelicInsertException, APIViolationException, NullPointerException
     {
         if (accountId <= 0 || isBlank(insertKey))
         {
@@ -121,20 +224,307 @@ public class NewRelicClient
             throw new NullPointerException("event is null.");
         }
 
-        String eventType = event.getEventType();
+        return insert(new ByteArrayEntity(toJson(event, commonAttributes)));
+    }
 
-        if (isInvalidEventType(eventType))
+    /**
+     * Submits a batch of custom new relic events via the New Relic Insights API in a single request, together with the client's common attributes.  Before
+     * this method is called, the client should be initialized with a valid New Relic account ID and insert key.
+     *
+     * @param events The New Relic custom events to be submitted.
+     * @return the response status returned by the New Relic Insights API.
+     * @throws IllegalStateException   if this method is called before an <code>accountId</code> and <code>insertKey</code> are set.
+     * @throws NewRelicInsertException if there is any unexpected exception while attempting to submit the events.
+     * @throws APIViolationException   if the event type of any event violates the insights API specifications, or if an event and the common attributes
+     *                                 together exceed the attribute limit.
+     * @throws NullPointerException    if the list of events or any of its events is null
+     */
+    public StatusLine submitBatch(List<? extends NewRelicEvent> events)
+            throws IllegalStateException, NewRelicInsertException, APIViolationException, NullPointerException
+    {
+        if (accountId <= 0 || isBlank(insertKey))
         {
-            throw new APIViolationException(eventType + " is illegal.  Must be a combination of alphanumeric characters, _ underscores, and : colons.");
+            throw new IllegalStateException("Uninitialized Client.  Please initialize with a valid NewRelic accountId and a valid insert key.");
         }
 
-        Map<String, Object> attributes = new HashMap<>(event.getAttributes());
-        attributes.put("eventType", eventType);
+        if (events == null)
+        {
+            throw new NullPointerException("events is null.");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('[');
+
+        for (NewRelicEvent event : events)
+        {
+            if (event == null)
+            {
+                throw new NullPointerException("event is null.");
+            }
+
+            if (out.size() > 1)
+            {
+                out.write(',');
+            }
+
+            byte[] json = toJson(event, commonAttributes);
+            out.write(json, 0, json.length);
+        }
+
+        out.write(']');
+
+        return insert(new ByteArrayEntity(out.toByteArray()));
+    }
+
+    /**
+     * Executes the NRQL query via the New Relic Insights API.  Before this method is called, the client should be initialized with a valid New Relic account
+     * ID and query key.
+     *
+     * @param query the NRQL query to be executed.
+     * @return the json response obtained as a result of executing the query.
+     * @throws IllegalStateException  if this method is called before an <code>accountId</code> and <code>queryKey</code> are set.
+     * @throws NullPointerException   if the <code>query</code> is null
+     * @throws NewRelicQueryException if there is any unexpected exception while attempting to execute the query, or if there is an error in the NRQL.
+     */
+    public String query(NewRelicQuery query) throws IllegalStateException, NullPointerException, NewRelicQueryException
+    {
+        if (accountId <= 0 || isBlank(queryKey))
+        {
+            throw new IllegalStateException("Uninitialized Client.  Please initialize with a valid NewRelic accountId and a valid query key.");
+        }
+
+        if (query == null)
+        {
+            throw new NullPointerException("query is null.");
+        }
+
+        HttpGet request = createQueryRequest(query.getQueryString());
+        RequestConfig requestConfig = request.getConfig();
+
+        String json;
+
+        try (CloseableHttpClient client = HttpClientBuilder.create().setDefaultRequestConfig(requestConfig).build();
+             CloseableHttpResponse response = client.execute(request))
+        {
+            json = EntityUtils.toString(response.getEntity());
+        }
+        catch (Exception e)
+        {
+            throw new NewRelicQueryException("NewRelic query failure.", e);
+        }
+
+        try
+        {
+            Map results = GSON.fromJson(json, Map.class);
+            Object error = results.get("error");
+
+            if (error instanceof String)
+            {
+                throw new NewRelicQueryException((String) error);
+            }
+        }
+        catch (JsonSyntaxException e)
+        {
+            throw new NewRelicQueryException("Error parsing json response.", e);
+        }
+
+        return json;
+    }
+
+    /**
+     * Exports the results of an NRQL query to a local file via the New Relic Insights API.  The events are streamed from each response to the file as they
+     * are read, so that the heap used does not grow with the number of exported events.  If the export fails, the target file holds only the time slices
+     * that were exported completely before the failure.  Before this method is called, the client should be initialized with a valid New Relic account ID
+     * and query key.
+     *
+     * @param export the description of the export to be performed.
+     * @return the number of events written to the target file.
+     * @throws IllegalStateException    if this method is called before an <code>accountId</code> and <code>queryKey</code> are set.
+     * @throws NullPointerException     if the <code>export</code>, its query or its target is null
+     * @throws IllegalArgumentException if the time range or slice length of the export is invalid.
+     * @throws NewRelicQueryException   if there is any unexpected exception while attempting to execute the export, if there is an error in the NRQL, or if a
+     *                                  single millisecond holds more events than the Insights API returns for one query.
+     */
+    public long export(NewRelicExport export) throws IllegalStateException, NullPointerException, IllegalArgumentException, NewRelicQueryException
+    {
+        if (accountId <= 0 || isBlank(queryKey))
+        {
+            throw new IllegalStateException("Uninitialized Client.  Please initialize with a valid NewRelic accountId and a valid query key.");
+        }
+
+        if (export == null)
+        {
+            throw new NullPointerException("export is null.");
+        }
+
+        if (export.getQuery() == null)
+        {
+            throw new NullPointerException("export query is null.");
+        }
+
+        if (export.getTarget() == null)
+        {
+            throw new NullPointerException("export target is null.");
+        }
+
+        if (export.getSince() >= export.getUntil())
+        {
+            throw new IllegalArgumentException("export since must be before export until.");
+        }
+
+        if (export.getSliceMillis() <= 0)
+        {
+            throw new IllegalArgumentException("export slice length must be positive.");
+        }
+
+        Deque<long[]> slices = new ArrayDeque<>();
+
+        for (long start = export.getSince(); start < export.getUntil(); start += export.getSliceMillis())
+        {
+            slices.addLast(new long[]{start, Math.min(start + export.getSliceMillis(), export.getUntil())});
+        }
+
+        long total = 0;
+
+        try (final NewRelicExportWriter writer = new NewRelicExportWriter(export.getTarget(), export.getFormat(), export.getColumns()))
+        {
+            while (!slices.isEmpty())
+            {
+                long[] slice = slices.removeFirst();
+                String nrql = export.getQuery().getNrql() + " SINCE " + slice[0] + " UNTIL " + slice[1] + " LIMIT " + MAX_QUERY_LIMIT;
+
+                writer.mark();
+                long count;
+
+                try
+                {
+                    count = queryEvents(nrql, new EventHandler()
+                    {
+                        @Override
+                        public void handle(JsonObject event) throws IOException
+                        {
+                            writer.write(event);
+                        }
+                    });
+                }
+                catch (NewRelicQueryException | IOException e)
+                {
+                    writer.rollback();
+                    throw e;
+                }
+
+                long middle = slice[0] + (slice[1] - slice[0]) / 2;
+
+                if (count >= MAX_QUERY_LIMIT)
+                {
+                    writer.rollback();
+
+                    if (middle <= slice[0])
+                    {
+                        throw new NewRelicQueryException("Export truncated.  More than " + MAX_QUERY_LIMIT + " events between " + slice[0] + " and "
+                                + slice[1] + ", which cannot be split into smaller time slices.");
+                    }
+
+                    slices.addFirst(new long[]{middle, slice[1]});
+                    slices.addFirst(new long[]{slice[0], middle});
+                }
+                else
+                {
+                    total += count;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new NewRelicQueryException("NewRelic export failure.", e);
+        }
+
+        return total;
+    }
+
+    /**
+     * Executes the NRQL and streams each returned event to the handler as it is read from the response.
+     *
+     * @return the number of events passed to the handler.
+     */
+    long queryEvents(String nrql, EventHandler handler) throws NewRelicQueryException, IOException
+    {
+        HttpGet request = createQueryRequest(new NewRelicQuery(nrql).getQueryString());
+        long count = 0;
+
+        try (CloseableHttpClient client = HttpClientBuilder.create().setDefaultRequestConfig(request.getConfig()).build();
+             CloseableHttpResponse response = client.execute(request);
+             JsonReader reader = new JsonReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8)))
+        {
+            JsonParser parser = new JsonParser();
+            reader.beginObject();
+
+            while (reader.hasNext())
+            {
+                String name = reader.nextName();
+
+                if ("error".equals(name) && reader.peek() == JsonToken.STRING)
+                {
+                    throw new NewRelicQueryException(reader.nextString());
+                }
+                else if ("results".equals(name))
+                {
+                    reader.beginArray();
+
+                    while (reader.hasNext())
+                    {
+                        reader.beginObject();
+
+                        while (reader.hasNext())
+                        {
+                            if ("events".equals(reader.nextName()))
+                            {
+                                reader.beginArray();
+
+                                while (reader.hasNext())
+                                {
+                                    handler.handle(parser.parse(reader).getAsJsonObject());
+                                    count++;
+                                }
+
+                                reader.endArray();
+                            }
+                            else
+                            {
+                                reader.skipValue();
+                            }
+                        }
+
+                        reader.endObject();
+                    }
+
+                    reader.endArray();
+                }
+                else
+                {
+                    reader.skipValue();
+                }
+            }
+
+            reader.endObject();
+        }
+        catch (JsonParseException | IllegalStateException e)
+        {
+            throw new NewRelicQueryException("Error parsing json response.", e);
+        }
+
+        return count;
+    }
 
+    /**
+     * Posts the json body to the insert API.
+     */
+    StatusLine insert(HttpEntity entity) throws NewRelicInsertException
+    {
         RequestConfig.Builder defaultRequestConfigBuilder = RequestConfig.custom()
                 .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
                 .setExpectContinueEnabled(true);
-        URI newRelicInsightsURI = URI.create("https://insights-collector.newrelic.com/");
+        URI newRelicInsightsURI = URI.create(insertUrl + "/");
         ProxySelector proxySelector = ProxySelector.getDefault();
         List<Proxy> proxies = proxySelector.select(newRelicInsightsURI);
         if (!proxies.isEmpty())
@@ -159,10 +549,10 @@ public class NewRelicClient
                 .setConnectionRequestTimeout(30000)
                 .build();
 
-        HttpPost request = new HttpPost("https://insights-collector.newrelic.com/v1/accounts/" + accountId + "/events");
+        HttpPost request = new HttpPost(insertUrl + "/v1/accounts/" + accountId + "/events");
         request.addHeader("Content-Type", "application/json");
         request.addHeader("X-Insert-Key", insertKey);
-        request.setEntity(new ByteArrayEntity(new Gson().toJson(attributes).getBytes()));
+        request.setEntity(entity);
         request.setConfig(requestConfig);
 
         try (CloseableHttpClient client = HttpClientBuilder.create().setDefaultRequestConfig(requestConfig).build();
@@ -176,28 +566,8 @@ public class NewRelicClient
         }
     }
 
-    /**
-     * Executes the NRQL query via the New Relic Insights API.  Before this method is called, the client should be initialized with a valid New Relic account
-     * ID and query key.
-     *
-     * @param query the NRQL query to be executed.
-     * @return the json response obtained as a result of executing the query.
-     * @throws IllegalStateException  if this method is called before an <code>accountId</code> and <code>queryKey</code> are set.
-     * @throws NullPointerException   if the <code>query</code> is null
-     * @throws NewRelicQueryException if there is any unexpected exception while attempting to execute the query, or if there is an error in the NRQL.
-     */
-    public String query(NewRelicQuery query) throws IllegalStateException, NullPointerException, NewRelicQueryException
+    private HttpGet createQueryRequest(String queryString)
     {
-        if (accountId <= 0 || isBlank(queryKey))
-        {
-            throw new IllegalStateException("Uninitialized Client.  Please initialize with a valid NewRelic accountId and a valid query key.");
-        }
-
-        if (query == null)
-        {
-            throw new NullPointerException("query is null.");
-        }
-
         RequestConfig defaultRequestConfig = RequestConfig.custom()
                 .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
                 .setExpectContinueEnabled(true)
@@ -209,43 +579,66 @@ public class NewRelicClient
                 .setConnectionRequestTimeout(30000)
                 .build();
 
-        HttpGet request = new HttpGet("https://insights-api.newrelic.com/v1/accounts/" + accountId + "/query?nrql=" + query.getQueryString());
+        HttpGet request = new HttpGet(queryUrl + "/v1/accounts/" + accountId + "/query?nrql=" + queryString);
         request.addHeader("Accept", "application/json");
         request.addHeader("X-Query-Key", queryKey);
         request.setConfig(requestConfig);
 
-        String json;
+        return request;
+    }
 
-        try (CloseableHttpClient client = HttpClientBuilder.create().setDefaultRequestConfig(requestConfig).build();
-             CloseableHttpResponse response = client.execute(request))
+    /**
+     * Serializes the event, splicing in the pre-encoded common attributes that are not overridden by attributes of the event.
+     */
+    static byte[] toJson(NewRelicEvent event, NewRelicCommonAttributes commonAttributes) throws APIViolationException
+    {
+        String eventType = event.getEventType();
+
+        if (isInvalidEventType(eventType))
         {
-            json = EntityUtils.toString(response.getEntity());
+            throw new APIViolationException(eventType + " is illegal.  Must be a combination of alphanumeric characters, _ underscores, and : colons.");
         }
-        catch (Exception e)
+
+        Map<String, Object> attributes = new HashMap<>(event.getAttributes());
+        attributes.put("eventType", eventType);
+
+        byte[] json = GSON.toJson(attributes).getBytes(StandardCharsets.UTF_8);
+
+        if (commonAttributes == null)
         {
-            throw new NewRelicQueryException("NewRelic query failure.", e);
+            return json;
         }
 
-        try
-        {
-            Map results = new Gson().fromJson(json, Map.class);
-            Object error = results.get("error");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length + 512);
+        out.write('{');
 
-            if (error instanceof String)
-            {
-                throw new NewRelicQueryException((String) error);
-            }
+        int written = commonAttributes.writeTo(out, attributes.keySet());
+
+        if (written + event.getAttributes().size() > NewRelicEvent.MAX_ATTRIBUTES)
+        {
+            throw new APIViolationException("Attribute limit exceeded.");
         }
-        catch (JsonSyntaxException e)
+
+        if (written > 0)
         {
-            throw new NewRelicQueryException("Error parsing json response.", e);
+            out.write(',');
         }
 
-        return json;
+        out.write(json, 1, json.length - 1);
+
+        return out.toByteArray();
     }
 
     private static boolean isInvalidEventType(String eventType)
     {
         return eventType == null || !isAlphanumeric(eventType.replaceAll(":", "").replaceAll("_", ""));
     }
+
+    /**
+     * Receives the events of a query response one at a time.
+     */
+    interface EventHandler
+    {
+        void handle(JsonObject event) throws IOException;
+    }
 }
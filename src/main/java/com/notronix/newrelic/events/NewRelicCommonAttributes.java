@@ -0,0 +1,184 @@
+package com.notronix.newrelic.events;
+
+import com.google.gson.Gson;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.apache.commons.lang3.StringUtils.join;
+
+/**
+ * A set of attributes that are shared by every event submitted with them, such as host, service or region.  Each attribute is validated and encoded as JSON
+ * once, when it is added, and the encoded attributes are spliced into each submitted event.  An attribute of the event itself takes precedence over a
+ * common attribute with the same name.  Instances are safe to share between threads.
+ *
+ * @version 1.0
+ * @see com.notronix.newrelic.events.NewRelicClient#setCommonAttributes(NewRelicCommonAttributes)
+ * @see com.notronix.newrelic.events.NewRelicClient#submit(NewRelicEvent, NewRelicCommonAttributes)
+ */
+public class NewRelicCommonAttributes
+{
+    private static final Gson GSON = new Gson();
+
+    private final Map<String, byte[]> attributes = new LinkedHashMap<>();
+    private byte[] encoded = new byte[0];
+
+    /**
+     * Adds a textual common attribute.  There is a limit of 254 total attributes per event, including common attributes.
+     *
+     * @param name  the name of the attribute
+     * @param value the value of the attribute (maximum length of 4kb)
+     * @throws APIViolationException if there are too many attributes or if the attribute length is exceeded.
+     */
+    public void addAttribute(String name, String value) throws APIViolationException
+    {
+        put(name, NewRelicEvent.cleanAttributeValue(value));
+    }
+
+    /**
+     * Adds a double common attribute.  There is a limit of 254 total attributes per event, including common attributes.
+     *
+     * @param name  the name of the attribute
+     * @param value the value of the attribute
+     * @throws APIViolationException if there are too many attributes.
+     */
+    public void addAttribute(String name, double value) throws APIViolationException
+    {
+        put(name, value);
+    }
+
+    /**
+     * Adds an integer common attribute.  There is a limit of 254 total attributes per event, including common attributes.
+     *
+     * @param name  the name of the attribute
+     * @param value the value of the attribute
+     * @throws APIViolationException if there are too many attributes.
+     */
+    public void addAttribute(String name, int value) throws APIViolationException
+    {
+        put(name, value);
+    }
+
+    /**
+     * Adds the elements of the provided Iterable as a common attribute by joining them into a single String.
+     *
+     * @param name      the name of the attribute
+     * @param iterable  the Iterable providing the values to join together, may be null
+     * @param separator the separator character to use, null treated as ""
+     * @throws APIViolationException if there are too many attributes.
+     */
+    public void addAttribute(String name, Iterable<String> iterable, String separator) throws APIViolationException
+    {
+        put(name, join(iterable, separator));
+    }
+
+    /**
+     * Removes a common attribute.
+     *
+     * @param name the name of the attribute to be removed.
+     */
+    public synchronized void removeAttribute(String name)
+    {
+        if (attributes.remove(NewRelicEvent.cleanAttributeName(name)) != null)
+        {
+            encode();
+        }
+    }
+
+    /**
+     * Gets the number of common attributes.
+     *
+     * @return the number of common attributes.
+     */
+    public synchronized int size()
+    {
+        return attributes.size();
+    }
+
+    /**
+     * Writes the encoded common attributes, separated by commas and without enclosing braces, leaving out the attributes whose names are overridden.
+     *
+     * @return the number of attributes written.
+     */
+    synchronized int writeTo(ByteArrayOutputStream out, Collection<String> overridden)
+    {
+        if (!isOverridden(overridden))
+        {
+            out.write(encoded, 0, encoded.length);
+
+            return attributes.size();
+        }
+
+        int written = 0;
+
+        for (Map.Entry<String, byte[]> attribute : attributes.entrySet())
+        {
+            if (!overridden.contains(attribute.getKey()))
+            {
+                if (written > 0)
+                {
+                    out.write(',');
+                }
+
+                out.write(attribute.getValue(), 0, attribute.getValue().length);
+                written++;
+            }
+        }
+
+        return written;
+    }
+
+    private boolean isOverridden(Collection<String> overridden)
+    {
+        for (String name : overridden)
+        {
+            if (attributes.containsKey(name))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private synchronized void put(String name, Object value) throws APIViolationException
+    {
+        String attributeName = NewRelicEvent.cleanAttributeName(name);
+
+        if (value == null)
+        {
+            attributes.remove(attributeName);
+            encode();
+
+            return;
+        }
+
+        if (!attributes.containsKey(attributeName) && attributes.size() >= NewRelicEvent.MAX_ATTRIBUTES)
+        {
+            throw new APIViolationException("Attribute limit exceeded.");
+        }
+
+        attributes.put(attributeName, (GSON.toJson(attributeName) + ":" + GSON.toJson(value)).getBytes(StandardCharsets.UTF_8));
+        encode();
+    }
+
+    private void encode()
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (byte[] attribute : attributes.values())
+        {
+            if (out.size() > 0)
+            {
+                out.write(',');
+            }
+
+            out.write(attribute, 0, attribute.length);
+        }
+
+        encoded = out.toByteArray();
+    }
+}
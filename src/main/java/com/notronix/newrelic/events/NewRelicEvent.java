@@ -21,6 +21,8 @@ public abstract class NewRelicEvent
             "endtime", "explain", "facet", "from", "hour", "hours", "in", "is", "like", "limit", "minute", "minutes", "month", "months", "not", "null",
             "offset", "or", "second", "seconds", "select", "since", "timeseries", "until", "week", "weeks", "where", "with");
 
+    static final int MAX_ATTRIBUTES = 254;
+
     private Map<String, Object> attributes = new HashMap<>(10);
 
     /**
@@ -44,14 +46,7 @@ public abstract class NewRelicEvent
             throw new APIViolationException("Attribute limit exceeded.");
         }
 
-        String attributeValue = trim(value);
-
-        if (attributeValue != null && attributeValue.getBytes(Charsets.UTF_8).length >= 4000)
-        {
-            throw new APIViolationException("Attribute is over the 4kb limit.");
-        }
-
-        attributes.put(cleanAttributeName(name), attributeValue);
+        attributes.put(cleanAttributeName(name), cleanAttributeValue(value));
     }
 
     /**
@@ -130,10 +125,22 @@ public abstract class NewRelicEvent
 
     private boolean tooManyAttributes()
     {
-        return (attributes.size() >= 254);
+        return (attributes.size() >= MAX_ATTRIBUTES);
+    }
+
+    static String cleanAttributeValue(String value) throws APIViolationException
+    {
+        String attributeValue = trim(value);
+
+        if (attributeValue != null && attributeValue.getBytes(Charsets.UTF_8).length >= 4000)
+        {
+            throw new APIViolationException("Attribute is over the 4kb limit.");
+        }
+
+        return attributeValue;
     }
 
-    private static String cleanAttributeName(String name)
+    static String cleanAttributeName(String name)
     {
         String attributeName = trim(name);
 
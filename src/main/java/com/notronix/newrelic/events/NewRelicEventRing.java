@@ -0,0 +1,239 @@
+package com.notronix.newrelic.events;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed size ring of serialized events held in a direct buffer.  Each event is stored as its json followed by a comma, so that consecutive events form the
+ * body of a json array without being copied.  An event is never split across the end of the buffer; the space left at the end is skipped instead.  Only the
+ * lengths of the events are kept on the heap, in a preallocated array.
+ * <p>
+ * Events are taken in batches of consecutive events, and the space of a batch is reused once it and every batch taken before it have been released.  A
+ * batch that has been taken may be split in two, and is released once both of its halves have been released.
+ */
+class NewRelicEventRing
+{
+    /**
+     * The smallest serialized event, <code>{"eventType":"a"},</code>, which bounds the number of events that fit in the ring.
+     */
+    private static final int MIN_EVENT_BYTES = 18;
+
+    private final ByteBuffer buffer;
+    private final int[] lengths;
+    private final Deque<Batch> taken = new ArrayDeque<>();
+
+    private int writePosition;
+    private int readPosition;
+    private int usedBytes;
+    private long written;
+    private long read;
+    private long released;
+
+    NewRelicEventRing(int capacityBytes)
+    {
+        this.buffer = ByteBuffer.allocateDirect(capacityBytes);
+        this.lengths = new int[Math.max(1, capacityBytes / MIN_EVENT_BYTES)];
+    }
+
+    synchronized int getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    synchronized int getUnreadCount()
+    {
+        return (int) (written - read);
+    }
+
+    synchronized boolean isEmpty()
+    {
+        return written == read;
+    }
+
+    /**
+     * Copies the serialized event into the ring, followed by a comma.
+     *
+     * @return false if there is not enough free space for the event.
+     */
+    synchronized boolean offer(byte[] json)
+    {
+        int length = json.length + 1;
+        int position = writePosition;
+        int skipped = 0;
+
+        if (position + length > buffer.capacity())
+        {
+            skipped = buffer.capacity() - position;
+            position = 0;
+        }
+
+        if (usedBytes + skipped + length > buffer.capacity() || written - released >= lengths.length)
+        {
+            return false;
+        }
+
+        buffer.position(position);
+        buffer.put(json);
+        buffer.put((byte) ',');
+
+        lengths[(int) (written % lengths.length)] = length;
+        writePosition = position + length;
+        usedBytes += skipped + length;
+        written++;
+        notifyAll();
+
+        return true;
+    }
+
+    /**
+     * Takes up to <code>maxEvents</code> consecutive unread events whose json array fits in <code>maxBytes</code>, waiting for at least one event to be
+     * written.  An event that does not fit in <code>maxBytes</code> on its own is taken as a batch of one.
+     *
+     * @return the batch, or null if no event was written before the timeout.
+     */
+    synchronized Batch take(int maxEvents, int maxBytes, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (written == read)
+        {
+            long remaining = deadline - System.nanoTime();
+
+            if (remaining <= 0)
+            {
+                return null;
+            }
+
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        int start = readPosition;
+        long first = read;
+        int bytes = 0;
+        int payload = 1;
+        int events = 0;
+
+        while (events < maxEvents && read < written)
+        {
+            int length = lengths[(int) (read % lengths.length)];
+
+            if (events > 0 && payload + length > maxBytes)
+            {
+                break;
+            }
+
+            if (readPosition + length > buffer.capacity())
+            {
+                if (events > 0)
+                {
+                    break;
+                }
+
+                bytes += buffer.capacity() - readPosition;
+                start = 0;
+                readPosition = 0;
+            }
+
+            readPosition += length;
+            payload += length;
+            bytes += length;
+            events++;
+            read++;
+        }
+
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(readPosition);
+        slice.position(start);
+
+        Batch batch = new Batch(slice.slice(), first, events, bytes, null);
+        taken.addLast(batch);
+
+        return batch;
+    }
+
+    /**
+     * Splits a batch of at least two events into two batches of consecutive events, the first holding the older half.  The split batch must not be released
+     * itself; it is released once both halves have been.
+     */
+    synchronized Batch[] split(Batch batch)
+    {
+        int half = batch.events / 2;
+        int offset = 0;
+
+        for (int i = 0; i < half; i++)
+        {
+            offset += lengths[(int) ((batch.first + i) % lengths.length)];
+        }
+
+        ByteBuffer head = batch.getJson();
+        head.limit(offset);
+
+        ByteBuffer tail = batch.getJson();
+        tail.position(offset);
+
+        batch.unreleasedParts = 2;
+
+        return new Batch[]{new Batch(head.slice(), batch.first, half, 0, batch), new Batch(tail.slice(), batch.first + half, batch.events - half, 0, batch)};
+    }
+
+    /**
+     * Marks the batch as released, and frees the space of every batch at the start of the ring that has been released.
+     */
+    synchronized void release(Batch batch)
+    {
+        if (batch.parent != null)
+        {
+            if (--batch.parent.unreleasedParts == 0)
+            {
+                release(batch.parent);
+            }
+
+            return;
+        }
+
+        batch.released = true;
+
+        while (!taken.isEmpty() && taken.peekFirst().released)
+        {
+            Batch first = taken.removeFirst();
+            usedBytes -= first.chargedBytes;
+            released += first.events;
+        }
+    }
+
+    /**
+     * Consecutive events taken from the ring.  The json of the events, each followed by a comma, is read directly from the direct buffer of the ring, and
+     * stays valid until the batch is released.  The halves of a split batch refer to the batch they were split from, and are charged no space of their own.
+     */
+    static class Batch
+    {
+        private final ByteBuffer json;
+        private final long first;
+        private final int events;
+        private final int chargedBytes;
+        private final Batch parent;
+        private int unreleasedParts;
+        private boolean released;
+
+        private Batch(ByteBuffer json, long first, int events, int chargedBytes, Batch parent)
+        {
+            this.json = json;
+            this.first = first;
+            this.events = events;
+            this.chargedBytes = chargedBytes;
+            this.parent = parent;
+        }
+
+        ByteBuffer getJson()
+        {
+            return json.duplicate();
+        }
+
+        int getEvents()
+        {
+            return events;
+        }
+    }
+}
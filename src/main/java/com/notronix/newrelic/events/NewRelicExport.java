@@ -0,0 +1,185 @@
+package com.notronix.newrelic.events;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes an export of NRQL query results to a local file.  The query is executed once per time slice between <code>since</code> and <code>until</code>,
+ * and every returned event is streamed to the target file as it is read, so the heap used by an export does not grow with the number of exported events.
+ * <p>
+ * The NRQL of the query must not contain <code>SINCE</code>, <code>UNTIL</code> or <code>LIMIT</code> clauses; these are appended for each time slice.  A
+ * slice that returns the maximum number of events allowed by the Insights API is discarded and re-executed as two smaller slices.  If a slice of a single
+ * millisecond still returns the maximum, the export fails rather than leaving events out, and the target file keeps only the slices before it.
+ *
+ * @version 1.0
+ * @see com.notronix.newrelic.events.NewRelicClient#export(NewRelicExport)
+ */
+public class NewRelicExport
+{
+    /**
+     * The file formats supported by an export.
+     */
+    public enum Format
+    {
+        /**
+         * One JSON object per line.
+         */
+        NDJSON,
+
+        /**
+         * Comma separated values with a header line.
+         */
+        CSV
+    }
+
+    private NewRelicQuery query;
+    private long since;
+    private long until;
+    private long sliceMillis = 60 * 60 * 1000L;
+    private Format format = Format.NDJSON;
+    private Path target;
+    private List<String> columns = Collections.emptyList();
+
+    /**
+     * Gets the query whose results will be exported.
+     *
+     * @return the query to be exported.
+     */
+    public NewRelicQuery getQuery()
+    {
+        return query;
+    }
+
+    /**
+     * Sets the query whose results will be exported.
+     *
+     * @param query the query to be exported.
+     */
+    public void setQuery(NewRelicQuery query)
+    {
+        this.query = query;
+    }
+
+    /**
+     * Gets the start of the exported time range.
+     *
+     * @return the start of the time range in milliseconds since the epoch (inclusive).
+     */
+    public long getSince()
+    {
+        return since;
+    }
+
+    /**
+     * Sets the start of the exported time range.
+     *
+     * @param since the start of the time range in milliseconds since the epoch (inclusive).
+     */
+    public void setSince(long since)
+    {
+        this.since = since;
+    }
+
+    /**
+     * Gets the end of the exported time range.
+     *
+     * @return the end of the time range in milliseconds since the epoch (exclusive).
+     */
+    public long getUntil()
+    {
+        return until;
+    }
+
+    /**
+     * Sets the end of the exported time range.
+     *
+     * @param until the end of the time range in milliseconds since the epoch (exclusive).
+     */
+    public void setUntil(long until)
+    {
+        this.until = until;
+    }
+
+    /**
+     * Gets the length of the time slices that the time range is initially divided into.
+     *
+     * @return the slice length in milliseconds.
+     */
+    public long getSliceMillis()
+    {
+        return sliceMillis;
+    }
+
+    /**
+     * Sets the length of the time slices that the time range is initially divided into.  Defaults to one hour.
+     *
+     * @param sliceMillis the slice length in milliseconds.
+     */
+    public void setSliceMillis(long sliceMillis)
+    {
+        this.sliceMillis = sliceMillis;
+    }
+
+    /**
+     * Gets the format of the exported file.
+     *
+     * @return the export format.
+     */
+    public Format getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * Sets the format of the exported file.  Defaults to {@link Format#NDJSON}.
+     *
+     * @param format the export format.
+     */
+    public void setFormat(Format format)
+    {
+        this.format = format;
+    }
+
+    /**
+     * Gets the file that the results will be written to.
+     *
+     * @return the target file.
+     */
+    public Path getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Sets the file that the results will be written to.  An existing file is overwritten.
+     *
+     * @param target the target file.
+     */
+    public void setTarget(Path target)
+    {
+        this.target = target;
+    }
+
+    /**
+     * Gets the columns written to a CSV export.
+     *
+     * @return the CSV columns, or an empty list if the columns are taken from the first exported event.
+     */
+    public List<String> getColumns()
+    {
+        return columns;
+    }
+
+    /**
+     * Sets the columns written to a CSV export.  When no columns are set, the attribute names of the first exported event are used.  Attributes that are
+     * not columns are left out of a CSV export.
+     *
+     * @param columns the CSV columns.
+     */
+    public void setColumns(List<String> columns)
+    {
+        this.columns = (columns == null) ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<>(columns));
+    }
+}
@@ -0,0 +1,181 @@
+package com.notronix.newrelic.events;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes exported events to a file through a fixed size buffer.  The written output can be marked and later rolled back to the mark, which allows a time
+ * slice to be discarded after it turns out to have been truncated by the Insights API.
+ */
+class NewRelicExportWriter implements Closeable
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final NewRelicExport.Format format;
+    private final List<String> columns;
+
+    private boolean headerWritten;
+    private long markPosition;
+    private boolean markHeaderWritten;
+    private List<String> markColumns;
+
+    NewRelicExportWriter(Path target, NewRelicExport.Format format, List<String> columns) throws IOException
+    {
+        this.channel = FileChannel.open(target, CREATE, WRITE, TRUNCATE_EXISTING);
+        this.format = format;
+        this.columns = new ArrayList<>(columns);
+        mark();
+    }
+
+    void write(JsonObject event) throws IOException
+    {
+        if (format == NewRelicExport.Format.CSV)
+        {
+            if (!headerWritten)
+            {
+                if (columns.isEmpty())
+                {
+                    for (Map.Entry<String, JsonElement> entry : event.entrySet())
+                    {
+                        columns.add(entry.getKey());
+                    }
+                }
+
+                writeLine(toCsvLine(columns));
+                headerWritten = true;
+            }
+
+            List<String> values = new ArrayList<>(columns.size());
+
+            for (String column : columns)
+            {
+                values.add(toCsvValue(event.get(column)));
+            }
+
+            writeLine(toCsvLine(values));
+        }
+        else
+        {
+            writeLine(event.toString());
+        }
+    }
+
+    void mark() throws IOException
+    {
+        flush();
+        markPosition = channel.position();
+        markHeaderWritten = headerWritten;
+        markColumns = new ArrayList<>(columns);
+    }
+
+    void rollback() throws IOException
+    {
+        buffer.clear();
+        channel.truncate(markPosition);
+        channel.position(markPosition);
+        headerWritten = markHeaderWritten;
+        columns.clear();
+        columns.addAll(markColumns);
+    }
+
+    void flush() throws IOException
+    {
+        buffer.flip();
+
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private void writeLine(String line) throws IOException
+    {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+
+        if (bytes.length > buffer.remaining())
+        {
+            flush();
+        }
+
+        if (bytes.length > buffer.capacity())
+        {
+            ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+
+            while (wrapped.hasRemaining())
+            {
+                channel.write(wrapped);
+            }
+        }
+        else
+        {
+            buffer.put(bytes);
+        }
+    }
+
+    private static String toCsvValue(JsonElement element)
+    {
+        if (element == null || element.isJsonNull())
+        {
+            return "";
+        }
+
+        return element.isJsonPrimitive() ? element.getAsString() : element.toString();
+    }
+
+    static String toCsvLine(List<String> values)
+    {
+        StringBuilder line = new StringBuilder();
+
+        for (int i = 0; i < values.size(); i++)
+        {
+            if (i > 0)
+            {
+                line.append(',');
+            }
+
+            String value = values.get(i);
+
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)
+            {
+                line.append('"').append(value.replace("\"", "\"\"")).append('"');
+            }
+            else
+            {
+                line.append(value);
+            }
+        }
+
+        return line.toString();
+    }
+}
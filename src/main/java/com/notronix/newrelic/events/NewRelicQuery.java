@@ -23,4 +23,9 @@ public class NewRelicQuery
     {
         return UrlEscapers.urlFormParameterEscaper().escape(queryString);
     }
+
+    String getNrql()
+    {
+        return queryString;
+    }
 }
@@ -0,0 +1,418 @@
+package com.notronix.newrelic.events;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repeatedly executes an NRQL query and delivers only the events that have not been seen before to a {@link NewRelicTailListener}.
+ * <p>
+ * The tail keeps a watermark of the newest event timestamp seen, and each poll only asks for events since the watermark minus a small overlap, so that
+ * events that arrive late are still found.  Events in the overlap that were already delivered are recognized by a hash of their content and left out; the
+ * number of copies of each row is counted, so separate events with identical attributes are each delivered once.  When a poll returns as many
+ * events as the Insights API allows, the older part of the range is fetched with further queries; if a single millisecond holds more events than that,
+ * the listener is told through {@link NewRelicTailListener#onError(Exception)}.  The polling interval shortens while new events keep arriving and
+ * lengthens while they do not.
+ * <p>
+ * The NRQL of the query must select events (for example <code>SELECT * FROM MyEvent</code>) that include their <code>timestamp</code>, and must not contain
+ * <code>SINCE</code>, <code>UNTIL</code> or <code>LIMIT</code> clauses.  Events without a timestamp are ignored.
+ *
+ * @version 1.0
+ * @see com.notronix.newrelic.events.NewRelicClient
+ * @see com.notronix.newrelic.events.NewRelicTailListener
+ */
+public class NewRelicQueryTail implements Closeable
+{
+    private final NewRelicClient client;
+    private final NewRelicQuery query;
+    private final NewRelicTailListener listener;
+    private final Map<Long, Seen> delivered = new HashMap<>();
+
+    private ScheduledExecutorService scheduler;
+    private long overlapMillis = 5000;
+    private long minIntervalMillis = 1000;
+    private long maxIntervalMillis = 60000;
+    private volatile long watermark;
+    private volatile long intervalMillis = 5000;
+    private volatile long queryCount;
+    private volatile long eventCount;
+
+    /**
+     * Creates a tail of the query, starting from the current time.
+     *
+     * @param client   the client used to execute the query.
+     * @param query    the query to be tailed.
+     * @param listener the listener that receives new events.
+     * @throws NullPointerException if any of the arguments is null
+     */
+    public NewRelicQueryTail(NewRelicClient client, NewRelicQuery query, NewRelicTailListener listener) throws NullPointerException
+    {
+        if (client == null || query == null || listener == null)
+        {
+            throw new NullPointerException("client, query and listener are required.");
+        }
+
+        this.client = client;
+        this.query = query;
+        this.listener = listener;
+        this.watermark = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts polling in the background.
+     *
+     * @throws IllegalStateException if the tail has already been started.
+     */
+    public synchronized void start() throws IllegalStateException
+    {
+        if (scheduler != null)
+        {
+            throw new IllegalStateException("Tail already started.");
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "NewRelicQueryTail");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        schedule(0);
+    }
+
+    /**
+     * Stops polling.  A poll that is in progress is allowed to complete.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Gets the timestamp of the newest event seen.
+     *
+     * @return the watermark in milliseconds since the epoch.
+     */
+    public long getWatermark()
+    {
+        return watermark;
+    }
+
+    /**
+     * Sets the timestamp that the tail starts from.  Defaults to the time the tail was created.
+     *
+     * @param since the starting watermark in milliseconds since the epoch.
+     */
+    public void setSince(long since)
+    {
+        this.watermark = since;
+    }
+
+    /**
+     * Gets the interval until the next poll.
+     *
+     * @return the polling interval in milliseconds.
+     */
+    public long getIntervalMillis()
+    {
+        return intervalMillis;
+    }
+
+    /**
+     * Gets the number of queries executed.
+     *
+     * @return the number of queries.
+     */
+    public long getQueryCount()
+    {
+        return queryCount;
+    }
+
+    /**
+     * Gets the number of events delivered to the listener.
+     *
+     * @return the number of delivered events.
+     */
+    public long getEventCount()
+    {
+        return eventCount;
+    }
+
+    /**
+     * Sets how far before the watermark each poll looks for late events.  Defaults to 5 seconds.
+     *
+     * @param overlapMillis the overlap in milliseconds.
+     */
+    public void setOverlapMillis(long overlapMillis)
+    {
+        this.overlapMillis = overlapMillis;
+    }
+
+    /**
+     * Sets the shortest polling interval.  Defaults to 1 second.
+     *
+     * @param minIntervalMillis the minimum polling interval in milliseconds.
+     */
+    public void setMinIntervalMillis(long minIntervalMillis)
+    {
+        this.minIntervalMillis = minIntervalMillis;
+        this.intervalMillis = Math.max(intervalMillis, minIntervalMillis);
+    }
+
+    /**
+     * Sets the longest polling interval.  Defaults to 1 minute.
+     *
+     * @param maxIntervalMillis the maximum polling interval in milliseconds.
+     */
+    public void setMaxIntervalMillis(long maxIntervalMillis)
+    {
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.intervalMillis = Math.min(intervalMillis, maxIntervalMillis);
+    }
+
+    /**
+     * Polls once, delivers the new events to the listener and adapts the polling interval.  The watermark only moves once the listener has accepted the
+     * events, so events that the listener fails on are delivered again by the next poll.  When more events share a millisecond than a single query returns,
+     * the events that could be fetched are delivered and the truncation is reported to {@link NewRelicTailListener#onError(Exception)}.
+     *
+     * @return the number of new events.
+     */
+    int poll() throws NewRelicQueryException, IOException
+    {
+        final long since = watermark - overlapMillis;
+        final List<JsonObject> events = new ArrayList<>();
+        final Map<Long, Seen> found = new HashMap<>();
+        final long[] oldest = new long[1];
+        long until = Long.MAX_VALUE;
+        NewRelicQueryException truncated = null;
+
+        while (true)
+        {
+            String range = " SINCE " + since + (until == Long.MAX_VALUE ? "" : " UNTIL " + until);
+            final Map<Long, Seen> page = new HashMap<>();
+            oldest[0] = Long.MAX_VALUE;
+
+            long count = client.queryEvents(query.getNrql() + range + " LIMIT " + NewRelicClient.MAX_QUERY_LIMIT, new NewRelicClient.EventHandler()
+            {
+                @Override
+                public void handle(JsonObject event)
+                {
+                    JsonElement timestamp = event.get("timestamp");
+
+                    if (timestamp == null || !timestamp.isJsonPrimitive())
+                    {
+                        return;
+                    }
+
+                    long time = timestamp.getAsLong();
+                    oldest[0] = Math.min(oldest[0], time);
+
+                    if (time < since)
+                    {
+                        return;
+                    }
+
+                    Long key = hash(event);
+                    Seen copies = page.get(key);
+
+                    if (copies == null)
+                    {
+                        copies = new Seen(time);
+                        page.put(key, copies);
+                    }
+
+                    if (++copies.count > Math.max(count(found, key), count(delivered, key)))
+                    {
+                        events.add(event);
+                    }
+                }
+            });
+
+            queryCount++;
+
+            for (Map.Entry<Long, Seen> copies : page.entrySet())
+            {
+                if (copies.getValue().count > count(found, copies.getKey()))
+                {
+                    found.put(copies.getKey(), copies.getValue());
+                }
+            }
+
+            if (count < NewRelicClient.MAX_QUERY_LIMIT)
+            {
+                break;
+            }
+
+            if (oldest[0] >= until - 1)
+            {
+                truncated = new NewRelicQueryException("Tail truncated.  More than " + NewRelicClient.MAX_QUERY_LIMIT + " events at " + oldest[0]
+                        + ", which cannot be fetched by time range.");
+                break;
+            }
+
+            until = oldest[0] + 1;
+        }
+
+        Collections.sort(events, new Comparator<JsonObject>()
+        {
+            @Override
+            public int compare(JsonObject a, JsonObject b)
+            {
+                return Long.compare(a.get("timestamp").getAsLong(), b.get("timestamp").getAsLong());
+            }
+        });
+
+        if (!events.isEmpty())
+        {
+            listener.onEvents(events);
+
+            watermark = Math.max(watermark, events.get(events.size() - 1).get("timestamp").getAsLong());
+            eventCount += events.size();
+
+            for (Map.Entry<Long, Seen> copies : found.entrySet())
+            {
+                if (copies.getValue().count > count(delivered, copies.getKey()))
+                {
+                    delivered.put(copies.getKey(), copies.getValue());
+                }
+            }
+        }
+
+        if (truncated != null)
+        {
+            report(truncated);
+        }
+
+        for (Iterator<Seen> copies = delivered.values().iterator(); copies.hasNext(); )
+        {
+            if (copies.next().time < watermark - overlapMillis)
+            {
+                copies.remove();
+            }
+        }
+
+        adapt(events.size());
+
+        return events.size();
+    }
+
+    /**
+     * Tells the listener about a failure.  A listener that fails in turn is ignored, so that it cannot stop the tail.
+     */
+    private void report(Exception e)
+    {
+        try
+        {
+            listener.onError(e);
+        }
+        catch (RuntimeException ignored)
+        {
+        }
+    }
+
+    private static int count(Map<Long, Seen> seen, Long key)
+    {
+        Seen copies = seen.get(key);
+
+        return (copies == null) ? 0 : copies.count;
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the json of the event, kept in place of the json itself so that the rows remembered for the overlap stay small.
+     */
+    private static long hash(JsonObject event)
+    {
+        String json = event.toString();
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < json.length(); i++)
+        {
+            hash ^= json.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    private void adapt(int newEvents)
+    {
+        if (newEvents == 0)
+        {
+            intervalMillis = Math.min(maxIntervalMillis, intervalMillis * 3 / 2);
+        }
+        else if (newEvents >= NewRelicClient.MAX_QUERY_LIMIT / 2)
+        {
+            intervalMillis = Math.max(minIntervalMillis, intervalMillis / 2);
+        }
+        else if (newEvents >= NewRelicClient.MAX_QUERY_LIMIT / 10)
+        {
+            intervalMillis = Math.max(minIntervalMillis, intervalMillis * 3 / 4);
+        }
+    }
+
+    private synchronized void schedule(long delayMillis)
+    {
+        if (scheduler.isShutdown())
+        {
+            return;
+        }
+
+        scheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    poll();
+                }
+                catch (Exception e)
+                {
+                    intervalMillis = Math.min(maxIntervalMillis, intervalMillis * 2);
+                    report(e);
+                }
+                finally
+                {
+                    schedule(intervalMillis);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The number of copies of a row returned by a query, and the timestamp of the row.  A row repeated at the boundary of two pages is counted by the page
+     * that returned the most copies of it, because the later page returns every row of that millisecond.
+     */
+    private static class Seen
+    {
+        private final long time;
+        private int count;
+
+        private Seen(long time)
+        {
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.notronix.newrelic.events;
+
+import com.google.gson.JsonObject;
+
+import java.util.List;
+
+/**
+ * Receives the events found by a {@link NewRelicQueryTail}.  Methods are called from the polling thread of the tail.
+ *
+ * @version 1.0
+ * @see com.notronix.newrelic.events.NewRelicQueryTail
+ */
+public interface NewRelicTailListener
+{
+    /**
+     * Called with the events that were not delivered by any earlier poll, oldest first.  Not called when a poll finds no new events.
+     *
+     * @param events the new events.
+     */
+    void onEvents(List<JsonObject> events);
+
+    /**
+     * Called when a poll fails.  The tail keeps polling, at a longer interval, even if this method throws.
+     *
+     * @param e the cause of the failure.
+     */
+    void onError(Exception e);
+}
@@ -0,0 +1,501 @@
+package com.notronix.newrelic.events;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local stand-in for the Insights insert and query APIs.  Inserted events are validated and captured, and payloads over the 1MB limit are rejected with
+ * a 413.  Queries are answered from the captured events, newest first, honouring the <code>SINCE</code>, <code>UNTIL</code> and <code>LIMIT</code> clauses
+ * of the NRQL.  Latency, throttling, server errors and dropped connections can be injected to exercise the failure handling of the client.
+ */
+class InsightsStandInServer implements AutoCloseable
+{
+    private static final int MAX_PAYLOAD_BYTES = 1000000;
+    private static final Pattern EVENTS_PATH = Pattern.compile("/v1/accounts/(\\d+)/events");
+    private static final Pattern QUERY_PATH = Pattern.compile("/v1/accounts/(\\d+)/query");
+    private static final Pattern SINCE = Pattern.compile("\\bSINCE\\s+(\\d++)\\b(?!\\s+\\w+\\s+ago)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern UNTIL = Pattern.compile("\\bUNTIL\\s+(\\d++)\\b(?!\\s+\\w+\\s+ago)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LIMIT = Pattern.compile("\\bLIMIT\\s+(\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern EVENT_TYPE = Pattern.compile("[A-Za-z0-9_:]+");
+
+    private final int accountId;
+    private final String insertKey;
+    private final String queryKey;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentLinkedQueue<JsonObject> events = new ConcurrentLinkedQueue<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final Random random = new Random(1);
+
+    private volatile long latencyMillis;
+    private volatile double throttleRate;
+    private volatile double serverErrorRate;
+    private volatile double dropRate;
+
+    InsightsStandInServer(int accountId, String insertKey, String queryKey) throws IOException
+    {
+        this.accountId = accountId;
+        this.insertKey = insertKey;
+        this.queryKey = queryKey;
+        this.executor = Executors.newCachedThreadPool();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/v1/accounts/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    dispatch(exchange);
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    String getUrl()
+    {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    NewRelicClient newClient()
+    {
+        NewRelicClient client = new NewRelicClient();
+        client.setAccountId(accountId);
+        client.setInsertKey(insertKey);
+        client.setQueryKey(queryKey);
+        client.setInsertUrl(getUrl());
+        client.setQueryUrl(getUrl());
+
+        return client;
+    }
+
+    List<JsonObject> getEvents()
+    {
+        return new ArrayList<>(events);
+    }
+
+    long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * The most requests that were waiting out the latency at the same time, since the last reset.  Only counted while a latency is set.
+     */
+    int getMaxConcurrentRequests()
+    {
+        return maxActive.get();
+    }
+
+    void resetMaxConcurrentRequests()
+    {
+        maxActive.set(0);
+    }
+
+    void setLatencyMillis(long latencyMillis)
+    {
+        this.latencyMillis = latencyMillis;
+    }
+
+    void setThrottleRate(double throttleRate)
+    {
+        this.throttleRate = throttleRate;
+    }
+
+    void setServerErrorRate(double serverErrorRate)
+    {
+        this.serverErrorRate = serverErrorRate;
+    }
+
+    void setDropRate(double dropRate)
+    {
+        this.dropRate = dropRate;
+    }
+
+    void addEvent(JsonObject event)
+    {
+        events.add(event);
+    }
+
+    void reset()
+    {
+        events.clear();
+        requests.set(0);
+        rejected.set(0);
+        maxActive.set(0);
+        latencyMillis = 0;
+        throttleRate = 0;
+        serverErrorRate = 0;
+        dropRate = 0;
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException
+    {
+        requests.incrementAndGet();
+
+        if (latencyMillis > 0)
+        {
+            int concurrent = active.incrementAndGet();
+
+            while (concurrent > maxActive.get())
+            {
+                maxActive.compareAndSet(maxActive.get(), concurrent);
+            }
+
+            try
+            {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            finally
+            {
+                active.decrementAndGet();
+            }
+        }
+
+        double roll;
+
+        synchronized (random)
+        {
+            roll = random.nextDouble();
+        }
+
+        if (roll < dropRate)
+        {
+            rejected.incrementAndGet();
+            return;
+        }
+
+        if (roll < dropRate + throttleRate)
+        {
+            reject(exchange, 429, "Too Many Requests");
+            return;
+        }
+
+        if (roll < dropRate + throttleRate + serverErrorRate)
+        {
+            reject(exchange, 503, "Service Unavailable");
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+        Matcher eventsPath = EVENTS_PATH.matcher(path);
+        Matcher queryPath = QUERY_PATH.matcher(path);
+
+        if (eventsPath.matches() && "POST".equals(exchange.getRequestMethod()))
+        {
+            insert(exchange, Integer.parseInt(eventsPath.group(1)));
+        }
+        else if (queryPath.matches() && "GET".equals(exchange.getRequestMethod()))
+        {
+            query(exchange, Integer.parseInt(queryPath.group(1)));
+        }
+        else
+        {
+            reject(exchange, 404, "Not Found");
+        }
+    }
+
+    private void insert(HttpExchange exchange, int account) throws IOException
+    {
+        if (account != accountId || !insertKey.equals(exchange.getRequestHeaders().getFirst("X-Insert-Key")))
+        {
+            reject(exchange, 403, "Invalid insert key.");
+            return;
+        }
+
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+
+        if (contentType == null || !contentType.startsWith("application/json"))
+        {
+            reject(exchange, 415, "Content-Type must be application/json.");
+            return;
+        }
+
+        byte[] body;
+
+        try (InputStream in = exchange.getRequestBody())
+        {
+            body = readFully(in);
+        }
+
+        if (body.length > MAX_PAYLOAD_BYTES)
+        {
+            reject(exchange, 413, "Payload Too Large");
+            return;
+        }
+
+        JsonElement payload;
+
+        try
+        {
+            payload = new JsonParser().parse(new String(body, StandardCharsets.UTF_8));
+        }
+        catch (JsonParseException e)
+        {
+            reject(exchange, 400, "Malformed JSON.");
+            return;
+        }
+
+        List<JsonObject> inserted = new ArrayList<>();
+
+        for (JsonElement element : payload.isJsonArray() ? payload.getAsJsonArray() : singleton(payload))
+        {
+            String error = validate(element);
+
+            if (error != null)
+            {
+                reject(exchange, 400, error);
+                return;
+            }
+
+            JsonObject event = element.getAsJsonObject();
+
+            if (!event.has("timestamp"))
+            {
+                event.addProperty("timestamp", System.currentTimeMillis());
+            }
+
+            inserted.add(event);
+        }
+
+        events.addAll(inserted);
+        respond(exchange, 200, "{\"success\":true}");
+    }
+
+    private void query(HttpExchange exchange, int account) throws IOException
+    {
+        if (account != accountId || !queryKey.equals(exchange.getRequestHeaders().getFirst("X-Query-Key")))
+        {
+            reject(exchange, 403, "Invalid query key.");
+            return;
+        }
+
+        String nrql = null;
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+
+        if (rawQuery != null)
+        {
+            for (String parameter : rawQuery.split("&"))
+            {
+                if (parameter.startsWith("nrql="))
+                {
+                    nrql = URLDecoder.decode(parameter.substring(5), "UTF-8");
+                }
+            }
+        }
+
+        if (nrql == null)
+        {
+            respond(exchange, 400, "{\"error\":\"NRQL Syntax Error: missing nrql parameter.\"}");
+            return;
+        }
+
+        long since = Long.MIN_VALUE;
+        long until = Long.MAX_VALUE;
+        int limit = 100;
+
+        Matcher matcher = SINCE.matcher(nrql);
+
+        if (matcher.find())
+        {
+            since = Long.parseLong(matcher.group(1));
+        }
+
+        matcher = UNTIL.matcher(nrql);
+
+        if (matcher.find())
+        {
+            until = Long.parseLong(matcher.group(1));
+        }
+
+        matcher = LIMIT.matcher(nrql);
+
+        if (matcher.find())
+        {
+            limit = Integer.parseInt(matcher.group(1));
+        }
+
+        List<JsonObject> matches = new ArrayList<>();
+
+        for (JsonObject event : events)
+        {
+            long timestamp = event.get("timestamp").getAsLong();
+
+            if (timestamp >= since && timestamp < until)
+            {
+                matches.add(event);
+            }
+        }
+
+        Collections.sort(matches, new Comparator<JsonObject>()
+        {
+            @Override
+            public int compare(JsonObject a, JsonObject b)
+            {
+                return Long.compare(b.get("timestamp").getAsLong(), a.get("timestamp").getAsLong());
+            }
+        });
+
+        JsonArray results = new JsonArray();
+
+        for (JsonObject event : matches.subList(0, Math.min(limit, matches.size())))
+        {
+            results.add(event);
+        }
+
+        JsonObject result = new JsonObject();
+        result.add("events", results);
+
+        JsonArray resultsArray = new JsonArray();
+        resultsArray.add(result);
+
+        JsonObject response = new JsonObject();
+        response.add("results", resultsArray);
+        response.add("metadata", new JsonObject());
+
+        respond(exchange, 200, new Gson().toJson(response));
+    }
+
+    private static String validate(JsonElement element)
+    {
+        if (!element.isJsonObject())
+        {
+            return "Event must be a JSON object.";
+        }
+
+        JsonObject event = element.getAsJsonObject();
+        JsonElement eventType = event.get("eventType");
+
+        if (eventType == null || !eventType.isJsonPrimitive() || !EVENT_TYPE.matcher(eventType.getAsString()).matches())
+        {
+            return "Missing or invalid eventType.";
+        }
+
+        if (event.entrySet().size() > NewRelicEvent.MAX_ATTRIBUTES + 1)
+        {
+            return "Attribute limit exceeded.";
+        }
+
+        for (Map.Entry<String, JsonElement> attribute : event.entrySet())
+        {
+            JsonElement value = attribute.getValue();
+
+            if (!value.isJsonPrimitive() && !value.isJsonNull())
+            {
+                return "Attribute " + attribute.getKey() + " must be a string or a number.";
+            }
+
+            if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isString()
+                    && value.getAsString().getBytes(StandardCharsets.UTF_8).length >= 4000)
+            {
+                return "Attribute " + attribute.getKey() + " is over the 4kb limit.";
+            }
+        }
+
+        return null;
+    }
+
+    private void reject(HttpExchange exchange, int status, String message) throws IOException
+    {
+        rejected.incrementAndGet();
+        respond(exchange, status, new Gson().toJson(singletonError(message)));
+    }
+
+    private static JsonObject singletonError(String message)
+    {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+
+        return error;
+    }
+
+    private static JsonArray singleton(JsonElement element)
+    {
+        JsonArray array = new JsonArray();
+        array.add(element);
+
+        return array;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,142 @@
+package com.notronix.newrelic.events;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class NewRelicAdaptiveControllerTest
+{
+    private static final long LATENCY = TimeUnit.MILLISECONDS.toNanos(50);
+
+    @Test
+    public void testAdditiveIncrease()
+    {
+        NewRelicAdaptiveController controller = new NewRelicAdaptiveController();
+        int batchSize = controller.getBatchSize();
+
+        for (int i = 0; i < 100; i++)
+        {
+            controller.record(controller.getBatchSize(), 100 * controller.getBatchSize(), LATENCY, 200);
+        }
+
+        assertTrue("Batch size should have grown.", controller.getBatchSize() > batchSize);
+        assertTrue("Concurrency should have grown.", controller.getConcurrency() > 1);
+        assertEquals("Should not have decreased.", 0, controller.getDecreaseCount());
+    }
+
+    @Test
+    public void testMultiplicativeDecreaseOnThrottling()
+    {
+        NewRelicAdaptiveController controller = new NewRelicAdaptiveController();
+        controller.setTargetThrottleRate(0);
+
+        for (int i = 0; i < 200; i++)
+        {
+            controller.record(10, 1000, LATENCY, 200);
+        }
+
+        int concurrency = controller.getConcurrency();
+        int batchSize = controller.getBatchSize();
+        controller.record(10, 1000, LATENCY, 429);
+
+        assertEquals("Concurrency should have been halved.", concurrency / 2, controller.getConcurrency(), 1);
+        assertEquals("Batch size should not have changed.", batchSize, controller.getBatchSize());
+
+        controller.record(10, 1000, LATENCY, 429);
+        assertEquals("Should decrease at most once per round trip.", 1, controller.getDecreaseCount());
+        assertEquals("Both responses should have been counted.", 2, controller.getThrottledCount());
+    }
+
+    @Test
+    public void testThrottlingBelowTargetRate()
+    {
+        NewRelicAdaptiveController controller = new NewRelicAdaptiveController();
+        controller.setTargetThrottleRate(0.05);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            controller.record(10, 1000, LATENCY, 200);
+        }
+
+        controller.record(10, 1000, LATENCY, 429);
+
+        assertEquals("Throttle rate should be measured over the last 100 requests.", 0.01, controller.getThrottleRate(), 0.0001);
+        assertEquals("A throttle rate below the target should not decrease.", 0, controller.getDecreaseCount());
+
+        for (int i = 0; i < 5; i++)
+        {
+            controller.record(10, 1000, LATENCY, 429);
+        }
+
+        assertEquals("A throttle rate above the target should decrease.", 1, controller.getDecreaseCount());
+    }
+
+    @Test
+    public void testOneDecreasePerRoundTripFromFirstRequest() throws InterruptedException
+    {
+        long roundTrip = TimeUnit.MILLISECONDS.toNanos(200);
+        NewRelicAdaptiveController controller = new NewRelicAdaptiveController();
+        controller.record(10, 1000, roundTrip, 200);
+
+        for (int i = 0; i < 3; i++)
+        {
+            controller.record(10, 1000, roundTrip, 429);
+            TimeUnit.MILLISECONDS.sleep(60);
+        }
+
+        assertEquals("Throttled responses within one round trip should decrease once.", 1, controller.getDecreaseCount());
+    }
+
+    @Test
+    public void testBatchSizeDecreaseAtMinimumConcurrency()
+    {
+        NewRelicAdaptiveController controller = new NewRelicAdaptiveController();
+        int batchSize = controller.getBatchSize();
+
+        controller.record(10, 1000, LATENCY, 503);
+
+        assertEquals("Concurrency should be at its minimum.", 1, controller.getConcurrency());
+        assertEquals("Batch size should have been halved.", batchSize / 2, controller.getBatchSize());
+    }
+
+    @Test
+    public void testBatchSizeDecreaseOnHighLatency()
+    {
+        NewRelicAdaptiveController controller = new NewRelicAdaptiveController();
+        controller.setTargetLatencyMillis(10);
+        int batchSize = controller.getBatchSize();
+
+        controller.record(10, 1000, LATENCY, 200);
+
+        assertEquals("Batch size should have been halved.", batchSize / 2, controller.getBatchSize());
+    }
+
+    @Test
+    public void testPayloadLimit()
+    {
+        NewRelicAdaptiveController controller = new NewRelicAdaptiveController();
+        controller.setMaxPayloadBytes(10000);
+
+        controller.record(10, 10000, LATENCY, 200);
+
+        assertTrue("Batch size should be capped by the payload size.", controller.getBatchSize() <= 10000 / (0.1 * 1000));
+    }
+
+    @Test
+    public void testBatchSizeDecreaseOnPayloadTooLarge()
+    {
+        NewRelicAdaptiveController controller = new NewRelicAdaptiveController();
+
+        controller.record(100, 1200000, LATENCY, 413);
+
+        assertTrue("Batch size should be below the rejected batch.", controller.getBatchSize() < 100);
+        assertEquals("Should have decreased once.", 1, controller.getDecreaseCount());
+        assertEquals("A payload that was too large is not throttling.", 0, controller.getThrottledCount());
+    }
+}
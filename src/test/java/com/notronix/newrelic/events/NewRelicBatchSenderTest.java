@@ -0,0 +1,215 @@
+package com.notronix.newrelic.events;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class NewRelicBatchSenderTest
+{
+    @Test
+    public void testDeliversThroughThrottling() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query");
+             NewRelicBatchSender sender = new NewRelicBatchSender(server.newClient()))
+        {
+            server.setThrottleRate(0.1);
+            server.setLatencyMillis(5);
+
+            for (int i = 0; i < 5000; i++)
+            {
+                assertTrue("Event should have been queued.", sender.send(newEvent(i)));
+            }
+
+            while (sender.getSentCount() < 5000 && sender.getController().getRequestCount() < 10000)
+            {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+
+            sender.close();
+
+            assertEquals("Every event should have been sent.", 5000, sender.getSentCount());
+            assertEquals("No event should have been dropped.", 0, sender.getDroppedCount());
+            assertEquals("Every event should have been captured.", 5000, server.getEvents().size());
+            assertTrue("Controller should have reacted to throttling.", sender.getController().getDecreaseCount() > 0);
+        }
+    }
+
+    @Test
+    public void testRetriesWaitForConcurrency() throws Exception
+    {
+        NewRelicAdaptiveController controller = new NewRelicAdaptiveController();
+        controller.setMaxBatchSize(5);
+
+        for (int i = 0; i < 200; i++)
+        {
+            controller.record(5, 500, TimeUnit.MILLISECONDS.toNanos(50), 200);
+        }
+
+        assertTrue("Concurrency should have grown.", controller.getConcurrency() > 2);
+
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query");
+             NewRelicBatchSender sender = new NewRelicBatchSender(server.newClient(), controller, 64 * 1024))
+        {
+            server.setThrottleRate(1);
+            server.setLatencyMillis(50);
+
+            for (int i = 0; i < 100; i++)
+            {
+                assertTrue("Event should have been queued.", sender.send(newEvent(i)));
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+
+            while (controller.getConcurrency() > 1 && System.currentTimeMillis() < deadline)
+            {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+
+            assertEquals("Concurrency should have dropped to one.", 1, controller.getConcurrency());
+
+            TimeUnit.MILLISECONDS.sleep(200);
+            server.resetMaxConcurrentRequests();
+            TimeUnit.MILLISECONDS.sleep(500);
+
+            assertTrue("Retries should not exceed the concurrency.", server.getMaxConcurrentRequests() <= controller.getConcurrency());
+            assertTrue("Retries should have been submitted.", server.getMaxConcurrentRequests() > 0);
+
+            sender.close();
+
+            assertEquals("No event should have been sent.", 0, sender.getSentCount());
+            assertEquals("Every event should have been dropped on close.", 100, sender.getDroppedCount());
+            assertEquals("The queue should be empty.", 0, sender.getQueuedBytes());
+        }
+    }
+
+    @Test
+    public void testCapacityInBytes() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query");
+             NewRelicBatchSender sender = new NewRelicBatchSender(server.newClient(), new NewRelicAdaptiveController(), 1024))
+        {
+            server.setLatencyMillis(200);
+
+            int queued = 0;
+
+            for (int i = 0; i < 100; i++)
+            {
+                if (sender.send(newEvent(i)))
+                {
+                    queued++;
+                }
+            }
+
+            assertTrue("Queued events should not exceed the capacity.", sender.getQueuedBytes() <= 1024);
+            assertTrue("Some events should not have fit.", queued < 100);
+
+            sender.close();
+
+            assertEquals("Every queued event should have been sent.", queued, sender.getSentCount());
+            assertEquals("Events that did not fit should have been dropped.", 100 - queued, sender.getDroppedCount());
+            assertEquals("Every queued event should have been captured.", queued, server.getEvents().size());
+        }
+    }
+
+    @Test
+    public void testBatchesStayUnderPayloadLimit() throws Exception
+    {
+        NewRelicAdaptiveController controller = newSmallEventController();
+
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query");
+             NewRelicBatchSender sender = new NewRelicBatchSender(server.newClient(), controller, 8 * 1024 * 1024))
+        {
+            server.setLatencyMillis(300);
+
+            for (int i = 0; i < 20; i++)
+            {
+                assertTrue("Event should have been queued.", sender.send(newLargeEvent(i)));
+            }
+
+            sender.close();
+
+            assertEquals("Every event should have been sent.", 20, sender.getSentCount());
+            assertEquals("No event should have been dropped.", 0, sender.getDroppedCount());
+            assertEquals("No payload should have been too large.", 0, server.getRejectedCount());
+        }
+    }
+
+    @Test
+    public void testSplitsBatchRejectedAsTooLarge() throws Exception
+    {
+        NewRelicAdaptiveController controller = newSmallEventController();
+        controller.setMaxPayloadBytes(4000000);
+
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query");
+             NewRelicBatchSender sender = new NewRelicBatchSender(server.newClient(), controller, 8 * 1024 * 1024))
+        {
+            server.setLatencyMillis(300);
+
+            for (int i = 0; i < 20; i++)
+            {
+                assertTrue("Event should have been queued.", sender.send(newLargeEvent(i)));
+            }
+
+            sender.close();
+
+            assertTrue("A payload should have been too large.", server.getRejectedCount() > 0);
+            assertEquals("Every event should have been sent.", 20, sender.getSentCount());
+            assertEquals("No event should have been dropped.", 0, sender.getDroppedCount());
+            assertEquals("Every event should have been captured.", 20, server.getEvents().size());
+            assertEquals("The queue should be empty.", 0, sender.getQueuedBytes());
+        }
+    }
+
+    /**
+     * A controller whose payload estimate comes from events of 100 bytes, so that it expects a batch of large events to be far smaller than it is.  Only one
+     * request is allowed in flight, so that the events queued during a request are taken as one batch.
+     */
+    private static NewRelicAdaptiveController newSmallEventController()
+    {
+        NewRelicAdaptiveController controller = new NewRelicAdaptiveController();
+
+        for (int i = 0; i < 10; i++)
+        {
+            controller.record(100, 100 * 100, TimeUnit.MILLISECONDS.toNanos(100), 200);
+        }
+
+        controller.setMaxConcurrency(1);
+
+        return controller;
+    }
+
+    private static NewRelicEvent newEvent(int sequence) throws APIViolationException
+    {
+        NewRelicEvent event = new NewRelicEvent()
+        {
+            @Override
+            public String getEventType()
+            {
+                return "test";
+            }
+        };
+
+        event.addAttribute("sequence", sequence);
+
+        return event;
+    }
+
+    private static NewRelicEvent newLargeEvent(int sequence) throws APIViolationException
+    {
+        NewRelicEvent event = newEvent(sequence);
+
+        for (int i = 0; i < 100; i++)
+        {
+            event.addAttribute("padding" + i, StringUtils.repeat('x', 3000));
+        }
+
+        return event;
+    }
+}
@@ -1,9 +1,18 @@
 package com.notronix.newrelic.events;
 
+import com.google.gson.JsonObject;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 @RunWith(JUnit4.class)
@@ -82,4 +91,231 @@ public class NewRelicClientTest
             fail("Should have thrown a NullPointerException.");
         }
     }
+
+    @Test
+    public void testSubmit() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            NewRelicCommonAttributes common = new NewRelicCommonAttributes();
+            common.addAttribute("host", "web01");
+
+            NewRelicClient client = server.newClient();
+            client.setCommonAttributes(common);
+
+            NewRelicEvent event = newEvent();
+            event.addAttribute("count", 3);
+
+            assertEquals("Event should have been accepted.", 200, client.submit(event).getStatusCode());
+
+            List<JsonObject> events = server.getEvents();
+            assertEquals("Event should have been captured.", 1, events.size());
+            assertEquals("Failed submitting event type.", "test", events.get(0).get("eventType").getAsString());
+            assertEquals("Failed submitting common attribute.", "web01", events.get(0).get("host").getAsString());
+            assertEquals("Failed submitting attribute.", 3, events.get(0).get("count").getAsInt());
+        }
+    }
+
+    @Test
+    public void testSubmitBatch() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            NewRelicCommonAttributes common = new NewRelicCommonAttributes();
+            common.addAttribute("host", "web01");
+            common.addAttribute("region", "east");
+
+            NewRelicClient client = server.newClient();
+            client.setCommonAttributes(common);
+
+            List<NewRelicEvent> batch = new ArrayList<>();
+
+            for (int i = 0; i < 3; i++)
+            {
+                NewRelicEvent event = newEvent();
+                event.addAttribute("sequence", i);
+                batch.add(event);
+            }
+
+            batch.get(2).addAttribute("host", "web02");
+
+            assertEquals("Batch should have been accepted.", 200, client.submitBatch(batch).getStatusCode());
+            assertEquals("Batch should have been posted in one request.", 1, server.getRequestCount());
+
+            List<JsonObject> events = server.getEvents();
+            assertEquals("Every event should have been captured.", 3, events.size());
+
+            for (int i = 0; i < 3; i++)
+            {
+                JsonObject event = events.get(i);
+                assertEquals("Failed submitting attribute.", i, event.get("sequence").getAsInt());
+                assertEquals("Failed submitting event type.", "test", event.get("eventType").getAsString());
+                assertEquals("Failed submitting common attribute.", "east", event.get("region").getAsString());
+                assertEquals("Event attribute should have taken precedence.", (i == 2) ? "web02" : "web01", event.get("host").getAsString());
+            }
+        }
+    }
+
+    @Test
+    public void testSubmitInvalidInsertKey() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            NewRelicClient client = server.newClient();
+            client.setInsertKey("wrong");
+
+            assertEquals("Event should have been rejected.", 403, client.submit(newEvent()).getStatusCode());
+            assertTrue("Event should not have been captured.", server.getEvents().isEmpty());
+        }
+    }
+
+    @Test
+    public void testSubmitThrottled() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            server.setThrottleRate(1);
+
+            assertEquals("Event should have been throttled.", 429, server.newClient().submit(newEvent()).getStatusCode());
+        }
+    }
+
+    @Test(expected = NewRelicInsertException.class)
+    public void testSubmitDroppedConnection() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            server.setDropRate(1);
+            server.newClient().submit(newEvent());
+        }
+    }
+
+    @Test
+    public void testQuery() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            NewRelicClient client = server.newClient();
+            client.submit(newEvent());
+
+            String json = client.query(new NewRelicQuery("SELECT * FROM test"));
+            assertTrue("Query should have returned the event.", json.contains("\"eventType\":\"test\""));
+        }
+    }
+
+    @Test
+    public void testQueryRelativeTimeRange() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            NewRelicClient client = server.newClient();
+            client.submit(newEvent());
+
+            String json = client.query(new NewRelicQuery("SELECT * FROM test SINCE 10 days ago UNTIL 10 minutes ago"));
+            assertTrue("Relative time ranges should have been ignored.", json.contains("\"eventType\":\"test\""));
+        }
+    }
+
+    @Test
+    public void testExportSplitsTruncatedSlices() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            for (int i = 0; i < 2500; i++)
+            {
+                JsonObject event = new JsonObject();
+                event.addProperty("eventType", "test");
+                event.addProperty("timestamp", 1000000L + i);
+                server.addEvent(event);
+            }
+
+            Path target = Files.createTempFile("export", ".ndjson");
+
+            NewRelicExport export = new NewRelicExport();
+            export.setQuery(new NewRelicQuery("SELECT * FROM test"));
+            export.setSince(1000000L);
+            export.setUntil(1000000L + 5000);
+            export.setTarget(target);
+
+            assertEquals("Every event should have been exported.", 2500, server.newClient().export(export));
+            assertEquals("Every event should have been written.", 2500, Files.readAllLines(target, StandardCharsets.UTF_8).size());
+            Files.delete(target);
+        }
+    }
+
+    @Test
+    public void testExportFailsOnUnsplittableSlice() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            JsonObject complete = new JsonObject();
+            complete.addProperty("eventType", "test");
+            complete.addProperty("timestamp", 996000L);
+            complete.addProperty("sequence", -1);
+            server.addEvent(complete);
+
+            for (int i = 0; i < 1500; i++)
+            {
+                JsonObject event = new JsonObject();
+                event.addProperty("eventType", "test");
+                event.addProperty("timestamp", 1000000L);
+                event.addProperty("sequence", i);
+                server.addEvent(event);
+            }
+
+            Path target = Files.createTempFile("export", ".ndjson");
+
+            NewRelicExport export = new NewRelicExport();
+            export.setQuery(new NewRelicQuery("SELECT * FROM test"));
+            export.setSince(1000000L - 5000);
+            export.setUntil(1000000L + 5000);
+            export.setSliceMillis(5000);
+            export.setTarget(target);
+
+            try
+            {
+                server.newClient().export(export);
+                fail("Export should have failed.");
+            }
+            catch (NewRelicQueryException e)
+            {
+                List<String> lines = Files.readAllLines(target, StandardCharsets.UTF_8);
+                assertEquals("Only the complete slice should have been written.", 1, lines.size());
+                assertTrue("Failed reading complete slice.", lines.get(0).contains("\"sequence\":-1"));
+            }
+            finally
+            {
+                Files.delete(target);
+            }
+        }
+    }
+
+    @Test
+    public void testLoad() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            server.setLatencyMillis(2);
+            server.setThrottleRate(0.1);
+
+            NewRelicLoadGenerator.Report report = new NewRelicLoadGenerator(server.newClient(), 4).run(200, 1000);
+
+            assertEquals("Every event should have been sent.", 200, report.getEvents());
+            assertEquals("No submission should have failed.", 0, report.getFailureCount());
+            assertEquals("Every accepted event should have been captured.", report.getStatusCount(200), server.getEvents().size());
+            assertTrue("Some events should have been throttled.", report.getStatusCount(429) > 0);
+            assertTrue("Latency should include the injected latency.", report.getLatencyMillis(50) >= 2);
+        }
+    }
+
+    private static NewRelicEvent newEvent()
+    {
+        return new NewRelicEvent() {
+            @Override
+            public String getEventType()
+            {
+                return "test";
+            }
+        };
+    }
 }
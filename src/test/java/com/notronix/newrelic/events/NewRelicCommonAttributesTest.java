@@ -0,0 +1,119 @@
+package com.notronix.newrelic.events;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class NewRelicCommonAttributesTest
+{
+    @Test
+    public void testSpliceCommonAttributes() throws APIViolationException
+    {
+        NewRelicCommonAttributes common = new NewRelicCommonAttributes();
+        common.addAttribute("host", "  web01  ");
+        common.addAttribute("build", 42);
+
+        NewRelicEvent event = newEvent();
+        event.addAttribute("duration", 2.5);
+
+        Map json = toMap(NewRelicClient.toJson(event, common));
+
+        assertEquals("Wrong number of attributes.", 4, json.size());
+        assertEquals("Failed splicing string attribute.", "web01", json.get("host"));
+        assertEquals("Failed splicing integer attribute.", 42d, json.get("build"));
+        assertEquals("Failed serializing event attribute.", 2.5, json.get("duration"));
+        assertEquals("Failed serializing event type.", "test", json.get("eventType"));
+    }
+
+    @Test
+    public void testEventOverridesCommonAttribute() throws APIViolationException
+    {
+        NewRelicCommonAttributes common = new NewRelicCommonAttributes();
+        common.addAttribute("host", "web01");
+        common.addAttribute("region", "east");
+        common.addAttribute("since", "reserved");
+
+        NewRelicEvent event = newEvent();
+        event.addAttribute("host", "web02");
+        event.addAttribute("since", "event");
+
+        Map json = toMap(NewRelicClient.toJson(event, common));
+
+        assertEquals("Wrong number of attributes.", 4, json.size());
+        assertEquals("Event attribute should have taken precedence.", "web02", json.get("host"));
+        assertEquals("Event attribute should have taken precedence.", "event", json.get("`since`"));
+        assertEquals("Common attribute should not have been overridden.", "east", json.get("region"));
+    }
+
+    @Test
+    public void testEmptyCommonAttributes() throws APIViolationException
+    {
+        Map json = toMap(NewRelicClient.toJson(newEvent(), new NewRelicCommonAttributes()));
+
+        assertEquals("Wrong number of attributes.", 1, json.size());
+        assertEquals("Failed serializing event type.", "test", json.get("eventType"));
+    }
+
+    @Test
+    public void testRemoveAttribute() throws APIViolationException
+    {
+        NewRelicCommonAttributes common = new NewRelicCommonAttributes();
+        common.addAttribute("host", "web01");
+        common.addAttribute("region", "east");
+        common.removeAttribute("host");
+
+        Map json = toMap(NewRelicClient.toJson(newEvent(), common));
+
+        assertEquals("Should only be one common attribute.", 1, common.size());
+        assertEquals("Wrong number of attributes.", 2, json.size());
+        assertEquals("Common attribute should have been kept.", "east", json.get("region"));
+    }
+
+    @Test(expected = APIViolationException.class)
+    public void testTooManyCombinedAttributes() throws APIViolationException
+    {
+        NewRelicCommonAttributes common = new NewRelicCommonAttributes();
+        NewRelicEvent event = newEvent();
+
+        try
+        {
+            for (int i = 0; i < 200; i++)
+            {
+                common.addAttribute("common" + i, i);
+                event.addAttribute("event" + i, i);
+            }
+
+            common.addAttribute("event0", 0);
+        }
+        catch (APIViolationException e)
+        {
+            fail("Should have been able to add 200 attributes.");
+        }
+
+        NewRelicClient.toJson(event, common);
+    }
+
+    private static NewRelicEvent newEvent()
+    {
+        return new NewRelicEvent() {
+            @Override
+            public String getEventType()
+            {
+                return "test";
+            }
+        };
+    }
+
+    private static Map toMap(byte[] json)
+    {
+        return new Gson().fromJson(new String(json, StandardCharsets.UTF_8), Map.class);
+    }
+}
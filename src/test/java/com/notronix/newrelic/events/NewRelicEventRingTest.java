@@ -0,0 +1,160 @@
+package com.notronix.newrelic.events;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class NewRelicEventRingTest
+{
+    @Test
+    public void testTakeConsecutiveEvents() throws InterruptedException
+    {
+        NewRelicEventRing ring = new NewRelicEventRing(1024);
+
+        assertTrue("Event should have fit.", ring.offer(json(1)));
+        assertTrue("Event should have fit.", ring.offer(json(2)));
+        assertTrue("Event should have fit.", ring.offer(json(3)));
+
+        NewRelicEventRing.Batch batch = ring.take(2, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+        assertEquals("Should have taken two events.", 2, batch.getEvents());
+        assertEquals("Failed reading batch.", "{\"eventType\":\"test\",\"n\":1},{\"eventType\":\"test\",\"n\":2},", toString(batch.getJson()));
+
+        batch = ring.take(2, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+        assertEquals("Should have taken the remaining event.", 1, batch.getEvents());
+        assertTrue("Ring should have no unread events.", ring.isEmpty());
+        assertNull("Should have timed out.", ring.take(2, Integer.MAX_VALUE, 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testFullRing() throws InterruptedException
+    {
+        int length = json(0).length + 1;
+        NewRelicEventRing ring = new NewRelicEventRing(length * 3);
+
+        assertTrue("Event should have fit.", ring.offer(json(1)));
+        assertTrue("Event should have fit.", ring.offer(json(2)));
+        assertTrue("Event should have fit.", ring.offer(json(3)));
+        assertFalse("Ring should have been full.", ring.offer(json(4)));
+
+        NewRelicEventRing.Batch batch = ring.take(1, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+        assertFalse("Taken events should still use their space.", ring.offer(json(4)));
+
+        ring.release(batch);
+        assertTrue("Released space should have been reused.", ring.offer(json(4)));
+        assertEquals("Ring should be full.", length * 3, ring.getUsedBytes());
+    }
+
+    @Test
+    public void testEventsDoNotSpanTheEnd() throws InterruptedException
+    {
+        int length = json(0).length + 1;
+        NewRelicEventRing ring = new NewRelicEventRing(length * 3 + length / 2);
+
+        ring.offer(json(1));
+        ring.offer(json(2));
+        ring.offer(json(3));
+        ring.release(ring.take(2, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS));
+
+        assertTrue("Event should have wrapped to the start.", ring.offer(json(4)));
+        assertEquals("Skipped space at the end should be in use.", length * 2 + (length * 3 + length / 2 - length * 3), ring.getUsedBytes());
+
+        NewRelicEventRing.Batch batch = ring.take(10, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+        assertEquals("Batch should stop at the end of the buffer.", "{\"eventType\":\"test\",\"n\":3},", toString(batch.getJson()));
+
+        NewRelicEventRing.Batch wrapped = ring.take(10, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+        assertEquals("Batch should start at the start of the buffer.", "{\"eventType\":\"test\",\"n\":4},", toString(wrapped.getJson()));
+
+        ring.release(batch);
+        ring.release(wrapped);
+        assertEquals("All space should have been freed.", 0, ring.getUsedBytes());
+    }
+
+    @Test
+    public void testReleaseOutOfOrder() throws InterruptedException
+    {
+        NewRelicEventRing ring = new NewRelicEventRing(1024);
+        ring.offer(json(1));
+        ring.offer(json(2));
+
+        NewRelicEventRing.Batch first = ring.take(1, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+        NewRelicEventRing.Batch second = ring.take(1, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS);
+        int used = ring.getUsedBytes();
+
+        ring.release(second);
+        assertEquals("Space should not be freed before earlier batches are released.", used, ring.getUsedBytes());
+
+        ring.release(first);
+        assertEquals("All space should have been freed.", 0, ring.getUsedBytes());
+    }
+
+    @Test
+    public void testTakeStopsAtMaxBytes() throws InterruptedException
+    {
+        int length = json(0).length + 1;
+        NewRelicEventRing ring = new NewRelicEventRing(1024);
+        ring.offer(json(1));
+        ring.offer(json(2));
+        ring.offer(json(3));
+
+        NewRelicEventRing.Batch batch = ring.take(10, length * 2 + 1, 0, TimeUnit.MILLISECONDS);
+        assertEquals("Batch should have stopped before the payload limit.", 2, batch.getEvents());
+
+        batch = ring.take(10, 1, 0, TimeUnit.MILLISECONDS);
+        assertEquals("An event over the payload limit should be taken on its own.", 1, batch.getEvents());
+    }
+
+    @Test
+    public void testSplitBatch() throws InterruptedException
+    {
+        NewRelicEventRing ring = new NewRelicEventRing(1024);
+        ring.offer(json(1));
+        ring.offer(json(2));
+        ring.offer(json(3));
+
+        NewRelicEventRing.Batch[] halves = ring.split(ring.take(10, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS));
+        assertEquals("Failed reading first half.", "{\"eventType\":\"test\",\"n\":1},", toString(halves[0].getJson()));
+        assertEquals("Failed reading second half.", "{\"eventType\":\"test\",\"n\":2},{\"eventType\":\"test\",\"n\":3},", toString(halves[1].getJson()));
+
+        NewRelicEventRing.Batch[] quarters = ring.split(halves[1]);
+        assertEquals("Failed reading split half.", "{\"eventType\":\"test\",\"n\":3},", toString(quarters[1].getJson()));
+
+        int used = ring.getUsedBytes();
+        ring.release(halves[0]);
+        ring.release(quarters[1]);
+        assertEquals("Space should not be freed before every part is released.", used, ring.getUsedBytes());
+
+        ring.release(quarters[0]);
+        assertEquals("All space should have been freed.", 0, ring.getUsedBytes());
+    }
+
+    @Test
+    public void testEventLargerThanRing()
+    {
+        NewRelicEventRing ring = new NewRelicEventRing(16);
+
+        assertFalse("Event should not have fit.", ring.offer(json(1)));
+    }
+
+    private static byte[] json(int n)
+    {
+        return ("{\"eventType\":\"test\",\"n\":" + n + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String toString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
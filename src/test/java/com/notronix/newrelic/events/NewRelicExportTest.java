@@ -0,0 +1,132 @@
+package com.notronix.newrelic.events;
+
+import com.google.gson.JsonObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class NewRelicExportTest
+{
+    @Test
+    public void testWriteNdjson() throws IOException
+    {
+        Path target = Files.createTempFile("export", ".ndjson");
+
+        try (NewRelicExportWriter writer = new NewRelicExportWriter(target, NewRelicExport.Format.NDJSON, Collections.<String>emptyList()))
+        {
+            writer.write(event("a", "1"));
+            writer.write(event("a", "2"));
+        }
+
+        List<String> lines = Files.readAllLines(target, StandardCharsets.UTF_8);
+        assertEquals("Should be one line per event.", Arrays.asList("{\"a\":\"1\"}", "{\"a\":\"2\"}"), lines);
+        Files.delete(target);
+    }
+
+    @Test
+    public void testWriteCsv() throws IOException
+    {
+        Path target = Files.createTempFile("export", ".csv");
+
+        try (NewRelicExportWriter writer = new NewRelicExportWriter(target, NewRelicExport.Format.CSV, Collections.<String>emptyList()))
+        {
+            JsonObject event = event("name", "a,b");
+            event.addProperty("count", 3);
+            writer.write(event);
+
+            event = event("name", "say \"hi\"");
+            event.addProperty("other", "ignored");
+            writer.write(event);
+        }
+
+        List<String> lines = Files.readAllLines(target, StandardCharsets.UTF_8);
+        assertEquals("Failed writing csv.", Arrays.asList("name,count", "\"a,b\",3", "\"say \"\"hi\"\"\","), lines);
+        Files.delete(target);
+    }
+
+    @Test
+    public void testRollback() throws IOException
+    {
+        Path target = Files.createTempFile("export", ".csv");
+
+        try (NewRelicExportWriter writer = new NewRelicExportWriter(target, NewRelicExport.Format.CSV, Collections.<String>emptyList()))
+        {
+            writer.mark();
+            writer.write(event("discarded", "1"));
+            writer.rollback();
+
+            writer.write(event("kept", "2"));
+            writer.mark();
+            writer.write(event("kept", "3"));
+            writer.rollback();
+        }
+
+        List<String> lines = Files.readAllLines(target, StandardCharsets.UTF_8);
+        assertEquals("Rolled back output should have been discarded.", Arrays.asList("kept", "2"), lines);
+        Files.delete(target);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullExportError()
+    {
+        NewRelicClient client = new NewRelicClient();
+        client.setQueryKey("test");
+        client.setAccountId(1);
+
+        try
+        {
+            client.export(null);
+        }
+        catch (NewRelicQueryException | IllegalStateException e)
+        {
+            fail("Should have thrown a NullPointerException.");
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTimeRange() throws IOException
+    {
+        NewRelicClient client = new NewRelicClient();
+        client.setQueryKey("test");
+        client.setAccountId(1);
+
+        NewRelicExport export = new NewRelicExport();
+        export.setQuery(new NewRelicQuery("SELECT * FROM Test"));
+        export.setTarget(Files.createTempFile("export", ".ndjson"));
+        export.setSince(2000);
+        export.setUntil(1000);
+
+        try
+        {
+            client.export(export);
+        }
+        catch (NewRelicQueryException | IllegalStateException e)
+        {
+            fail("Should have thrown an IllegalArgumentException.");
+        }
+        finally
+        {
+            Files.delete(export.getTarget());
+        }
+    }
+
+    private static JsonObject event(String name, String value)
+    {
+        JsonObject event = new JsonObject();
+        event.addProperty(name, value);
+
+        return event;
+    }
+}
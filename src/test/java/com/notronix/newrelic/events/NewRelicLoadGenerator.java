@@ -0,0 +1,204 @@
+package com.notronix.newrelic.events;
+
+import org.apache.http.StatusLine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a {@link NewRelicClient} at a target rate of submitted events and reports the achieved throughput, the latency percentiles of the submissions and
+ * the number of bytes allocated per submitted event.
+ */
+class NewRelicLoadGenerator
+{
+    private final NewRelicClient client;
+    private final int threads;
+
+    NewRelicLoadGenerator(NewRelicClient client, int threads)
+    {
+        this.client = client;
+        this.threads = threads;
+    }
+
+    Report run(final int events, final double eventsPerSecond) throws InterruptedException
+    {
+        final long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / eventsPerSecond);
+        final long start = System.nanoTime();
+        final AtomicInteger next = new AtomicInteger();
+        final long[] latencies = new long[events];
+        final int[] statuses = new int[events];
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> allocations = new ArrayList<>(threads);
+
+        for (int t = 0; t < threads; t++)
+        {
+            allocations.add(executor.submit(new Callable<Long>()
+            {
+                @Override
+                public Long call() throws Exception
+                {
+                    long allocatedBefore = allocatedBytes();
+                    int i;
+
+                    while ((i = next.getAndIncrement()) < events)
+                    {
+                        long due = start + i * intervalNanos;
+                        long wait = due - System.nanoTime();
+
+                        if (wait > 0)
+                        {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+
+                        NewRelicEvent event = new LoadEvent();
+                        event.addAttribute("sequence", i);
+                        event.addAttribute("thread", Thread.currentThread().getName());
+
+                        long sent = System.nanoTime();
+
+                        try
+                        {
+                            StatusLine status = client.submit(event);
+                            statuses[i] = status.getStatusCode();
+                        }
+                        catch (NewRelicInsertException e)
+                        {
+                            statuses[i] = -1;
+                        }
+
+                        latencies[i] = System.nanoTime() - sent;
+                    }
+
+                    return allocatedBytes() - allocatedBefore;
+                }
+            }));
+        }
+
+        executor.shutdown();
+
+        if (!executor.awaitTermination(10, TimeUnit.MINUTES))
+        {
+            executor.shutdownNow();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = 0;
+
+        for (Future<Long> allocation : allocations)
+        {
+            try
+            {
+                allocated += allocation.get();
+            }
+            catch (Exception e)
+            {
+                throw new IllegalStateException("Load generator thread failed.", e);
+            }
+        }
+
+        return new Report(latencies, statuses, elapsed, allocated);
+    }
+
+    private static long allocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return 0;
+    }
+
+    static class Report
+    {
+        private final long[] latencies;
+        private final int[] statuses;
+        private final long elapsedNanos;
+        private final long allocatedBytes;
+
+        Report(long[] latencies, int[] statuses, long elapsedNanos, long allocatedBytes)
+        {
+            this.latencies = latencies.clone();
+            this.statuses = statuses;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            Arrays.sort(this.latencies);
+        }
+
+        int getEvents()
+        {
+            return latencies.length;
+        }
+
+        int getStatusCount(int status)
+        {
+            int count = 0;
+
+            for (int s : statuses)
+            {
+                if (s == status)
+                {
+                    count++;
+                }
+            }
+
+            return count;
+        }
+
+        int getFailureCount()
+        {
+            return getStatusCount(-1);
+        }
+
+        double getEventsPerSecond()
+        {
+            return latencies.length / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        double getLatencyMillis(double percentile)
+        {
+            if (latencies.length == 0)
+            {
+                return 0;
+            }
+
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        long getAllocatedBytesPerEvent()
+        {
+            return latencies.length == 0 ? 0 : allocatedBytes / latencies.length;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d events at %.1f events/s, latency p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms, %d bytes allocated per event, "
+                            + "%d throttled, %d failed", getEvents(), getEventsPerSecond(), getLatencyMillis(50), getLatencyMillis(95),
+                    getLatencyMillis(99), getLatencyMillis(100), getAllocatedBytesPerEvent(), getStatusCount(429), getFailureCount());
+        }
+    }
+
+    private static class LoadEvent extends NewRelicEvent
+    {
+        @Override
+        public String getEventType()
+        {
+            return "LoadTest";
+        }
+    }
+}
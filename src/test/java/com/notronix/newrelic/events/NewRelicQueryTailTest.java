@@ -0,0 +1,332 @@
+package com.notronix.newrelic.events;
+
+import com.google.gson.JsonObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class NewRelicQueryTailTest
+{
+    private static final long START = 1000000000000L;
+
+    @Test
+    public void testDeliversOnlyNewEvents() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            RecordingListener listener = new RecordingListener();
+            NewRelicQueryTail tail = new NewRelicQueryTail(server.newClient(), new NewRelicQuery("SELECT * FROM test"), listener);
+            tail.setSince(START);
+
+            server.addEvent(event(START - 10000, 0));
+            server.addEvent(event(START + 1, 1));
+            server.addEvent(event(START + 2, 2));
+
+            assertEquals("Should have found the events after the start.", 2, tail.poll());
+            assertEquals("Watermark should be the newest timestamp.", START + 2, tail.getWatermark());
+
+            server.addEvent(event(START + 2, 3));
+            server.addEvent(event(START + 3, 4));
+
+            assertEquals("Should have found only the events not yet delivered.", 2, tail.poll());
+            assertEquals("Should not have found any new events.", 0, tail.poll());
+
+            assertEquals("Events should have been delivered once, oldest first.", "[1, 2, 3, 4]", listener.sequences.toString());
+        }
+    }
+
+    @Test
+    public void testLateEventsWithinOverlap() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            RecordingListener listener = new RecordingListener();
+            NewRelicQueryTail tail = new NewRelicQueryTail(server.newClient(), new NewRelicQuery("SELECT * FROM test"), listener);
+            tail.setSince(START);
+            tail.setOverlapMillis(1000);
+
+            server.addEvent(event(START + 5000, 1));
+            tail.poll();
+
+            server.addEvent(event(START + 4500, 2));
+            server.addEvent(event(START + 3000, 3));
+
+            assertEquals("Should have found the late event within the overlap.", 1, tail.poll());
+            assertEquals("Only the late event within the overlap should have been delivered.", "[1, 2]", listener.sequences.toString());
+        }
+    }
+
+    @Test
+    public void testPagesThroughLimit() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            RecordingListener listener = new RecordingListener();
+            NewRelicQueryTail tail = new NewRelicQueryTail(server.newClient(), new NewRelicQuery("SELECT * FROM test"), listener);
+            tail.setSince(START);
+
+            for (int i = 0; i < 2500; i++)
+            {
+                server.addEvent(event(START + 1 + i / 2, i));
+            }
+
+            assertEquals("Every event should have been found.", 2500, tail.poll());
+            assertEquals("Every event should have been delivered.", 2500, listener.sequences.size());
+            assertTrue("Should have needed more than one query.", tail.getQueryCount() > 1);
+        }
+    }
+
+    @Test
+    public void testDeliversIdenticalEvents() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            RecordingListener listener = new RecordingListener();
+            NewRelicQueryTail tail = new NewRelicQueryTail(server.newClient(), new NewRelicQuery("SELECT * FROM test"), listener);
+            tail.setSince(START);
+
+            for (int i = 0; i < 3; i++)
+            {
+                server.addEvent(event(START + 1, 7));
+            }
+
+            assertEquals("Every identical event should have been found.", 3, tail.poll());
+
+            server.addEvent(event(START + 1, 7));
+
+            assertEquals("Only the identical event not yet delivered should have been found.", 1, tail.poll());
+            assertEquals("Should not have found any new events.", 0, tail.poll());
+
+            for (int i = 0; i < 2500; i++)
+            {
+                server.addEvent(event(START + 2 + i / 2, -i / 2));
+            }
+
+            assertEquals("Identical events repeated at page boundaries should have been counted once.", 2500, tail.poll());
+            assertEquals("Every event should have been delivered.", 2504, listener.sequences.size());
+        }
+    }
+
+    @Test
+    public void testReportsTruncatedMillisecond() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            final List<Exception> errors = new ArrayList<>();
+            RecordingListener listener = new RecordingListener()
+            {
+                @Override
+                public void onError(Exception e)
+                {
+                    errors.add(e);
+                }
+            };
+
+            NewRelicQueryTail tail = new NewRelicQueryTail(server.newClient(), new NewRelicQuery("SELECT * FROM test"), listener);
+            tail.setSince(START);
+
+            for (int i = 0; i < 1500; i++)
+            {
+                server.addEvent(event(START + 1, i));
+            }
+
+            assertEquals("The events that could be fetched should have been delivered.", 1000, tail.poll());
+            assertEquals("Truncation should have been reported.", 1, errors.size());
+            assertTrue("Truncation should have been reported as a query failure.", errors.get(0) instanceof NewRelicQueryException);
+        }
+    }
+
+    @Test
+    public void testRedeliversAfterListenerFailure() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            final boolean[] fail = {true};
+            RecordingListener listener = new RecordingListener()
+            {
+                @Override
+                public void onEvents(List<JsonObject> events)
+                {
+                    if (fail[0])
+                    {
+                        fail[0] = false;
+                        throw new IllegalStateException("listener failure");
+                    }
+
+                    super.onEvents(events);
+                }
+            };
+
+            NewRelicQueryTail tail = new NewRelicQueryTail(server.newClient(), new NewRelicQuery("SELECT * FROM test"), listener);
+            tail.setSince(START);
+            tail.setOverlapMillis(1000);
+
+            server.addEvent(event(START + 1, 1));
+            server.addEvent(event(START + 10000, 2));
+
+            try
+            {
+                tail.poll();
+                fail("Listener failure should have been thrown.");
+            }
+            catch (IllegalStateException e)
+            {
+                assertEquals("Watermark should not have moved.", START, tail.getWatermark());
+            }
+
+            assertEquals("Events should have been delivered again.", 2, tail.poll());
+            assertEquals("No event should have been lost.", "[1, 2]", listener.sequences.toString());
+        }
+    }
+
+    @Test
+    public void testAdaptiveInterval() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            NewRelicQueryTail tail = new NewRelicQueryTail(server.newClient(), new NewRelicQuery("SELECT * FROM test"), new RecordingListener());
+            tail.setSince(START);
+
+            long interval = tail.getIntervalMillis();
+            tail.poll();
+            assertTrue("Interval should have grown without new events.", tail.getIntervalMillis() > interval);
+
+            for (int i = 0; i < 800; i++)
+            {
+                server.addEvent(event(START + 1 + i, i));
+            }
+
+            interval = tail.getIntervalMillis();
+            tail.poll();
+            assertTrue("Interval should have shrunk with many new events.", tail.getIntervalMillis() < interval);
+        }
+    }
+
+    @Test
+    public void testBackgroundPolling() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            server.addEvent(event(START + 1, 1));
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            RecordingListener listener = new RecordingListener()
+            {
+                @Override
+                public void onEvents(List<JsonObject> events)
+                {
+                    super.onEvents(events);
+                    latch.countDown();
+                }
+            };
+
+            try (NewRelicQueryTail tail = new NewRelicQueryTail(server.newClient(), new NewRelicQuery("SELECT * FROM test"), listener))
+            {
+                tail.setSince(START);
+                tail.start();
+
+                assertTrue("Events should have been delivered.", latch.await(5, TimeUnit.SECONDS));
+                assertEquals("Event should have been delivered.", "[1]", listener.sequences.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testKeepsPollingWhenListenerFails() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            server.setServerErrorRate(1);
+
+            final CountDownLatch latch = new CountDownLatch(2);
+            RecordingListener listener = new RecordingListener()
+            {
+                @Override
+                public void onError(Exception e)
+                {
+                    latch.countDown();
+                    throw new IllegalStateException("Listener failed.");
+                }
+            };
+
+            try (NewRelicQueryTail tail = new NewRelicQueryTail(server.newClient(), new NewRelicQuery("SELECT * FROM test"), listener))
+            {
+                tail.setMinIntervalMillis(10);
+                tail.setMaxIntervalMillis(20);
+                tail.start();
+
+                assertTrue("Should have kept polling after the listener failed.", latch.await(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    public void testKeepsPollingAfterError() throws Exception
+    {
+        try (InsightsStandInServer server = new InsightsStandInServer(1, "insert", "query"))
+        {
+            server.addEvent(event(START + 1, 1));
+
+            final CountDownLatch latch = new CountDownLatch(2);
+            RecordingListener listener = new RecordingListener()
+            {
+                @Override
+                public void onEvents(List<JsonObject> events)
+                {
+                    latch.countDown();
+                    throw new AssertionError("Listener failed.");
+                }
+            };
+
+            try (NewRelicQueryTail tail = new NewRelicQueryTail(server.newClient(), new NewRelicQuery("SELECT * FROM test"), listener))
+            {
+                tail.setSince(START);
+                tail.setMinIntervalMillis(10);
+                tail.setMaxIntervalMillis(20);
+                tail.start();
+
+                assertTrue("Should have kept polling after an error.", latch.await(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    private static JsonObject event(long timestamp, int sequence)
+    {
+        JsonObject event = new JsonObject();
+        event.addProperty("eventType", "test");
+        event.addProperty("timestamp", timestamp);
+        event.addProperty("sequence", sequence);
+
+        return event;
+    }
+
+    private static class RecordingListener implements NewRelicTailListener
+    {
+        final List<Integer> sequences = new ArrayList<>();
+
+        @Override
+        public void onEvents(List<JsonObject> events)
+        {
+            for (JsonObject event : events)
+            {
+                sequences.add(event.get("sequence").getAsInt());
+            }
+        }
+
+        @Override
+        public void onError(Exception e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+}